@@ -0,0 +1,73 @@
+/*
+ * Event 307 messages and exports made up for the benchmarks.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/** The BenchmarkData class */
+public class BenchmarkData {
+
+	static final String[] PRINTERS = LoadThroughput.PRINTERS;
+
+	/** Messages as they appear in the export, some with non printable characters */
+	static String[] messages(int count) {
+		Random random = new Random(7);
+		String[] messages = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder message = new StringBuilder();
+			message.append("Document ").append(random.nextInt(100000)).append(", ");
+			message.append(random.nextInt(4) == 0 ? "Report owned by the department on printing" : "Microsoft Word - Assignment")
+					.append(random.nextInt(1000));
+			message.append(" owned by ").append(108109000 + random.nextInt(2000)).append(" on \\\\10.1.34.").append(random.nextInt(255));
+			message.append(" was printed on ").append(PRINTERS[random.nextInt(PRINTERS.length)]);
+			message.append(" through port 10.0.0.43_2.  Size in bytes: ").append(random.nextInt(1000000));
+			message.append(". Pages printed: ").append(1 + random.nextInt(20)).append(". No user action is required.");
+			if (random.nextInt(10) == 0)
+				message.append('\u0000').insert(0, "\r\n");
+			messages[i] = message.toString();
+		}
+		return messages;
+	}
+
+	static String[] dates(int count) {
+		Random random = new Random(11);
+		String[] dates = new String[count];
+		for (int i = 0; i < count; i++)
+			dates[i] = (1 + random.nextInt(12)) + "/" + (1 + random.nextInt(28)) + "/2012 "
+					+ (1 + random.nextInt(12)) + ":" + (10 + random.nextInt(50)) + ":" + (10 + random.nextInt(50))
+					+ (random.nextBoolean() ? " AM" : " PM");
+		return dates;
+	}
+
+	/** Writes an export with the given number of events in the layout of Get-WinEvent | ConvertTo-csv */
+	static File export(int rows) throws IOException {
+		File file = File.createTempFile("export" + rows + "_", ".csv");
+		file.deleteOnExit();
+		String[] messages = messages(Math.min(rows, 10000));
+		String[] dates = dates(Math.min(rows, 10000));
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-16LE");
+		try {
+			out.write('\uFEFF');
+			out.write("#TYPE System.Diagnostics.Eventing.Reader.EventLogRecord\r\n");
+			out.write("\"Message\",\"Id\",\"Version\",\"Qualifiers\",\"Level\",\"Task\",\"Opcode\",\"Keywords\",\"RecordId\","
+					+ "\"ProviderName\",\"ProviderId\",\"LogName\",\"ProcessId\",\"ThreadId\",\"MachineName\",\"UserId\",\"TimeCreated\"\r\n");
+			for (int i = 0; i < rows; i++) {
+				out.write('"');
+				out.write(messages[i % messages.length].replace("\"", "\"\""));
+				out.write("\",\"307\",\"0\",,\"4\",\"26\",\"11\",\"-9223372036854775744\",\"" + i + "\","
+						+ "\"Microsoft-Windows-PrintService\",,\"Microsoft-Windows-PrintService/Operational\",\"1234\",\"5678\","
+						+ "\"PRINTSERVER\",\"S-1-5-21\",\"" + dates[i % dates.length] + "\"\r\n");
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Rows per second loaded into the month tables and csgled of an embedded H2 database.
+ * The scores are for whole loads of ROWS events, including the final flush and commit.
+ * A batch size of 0 stands for the bulk load through CSVREAD.
+ */
+
+package logExtraction;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The LoadBenchmark class */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadBenchmark {
+
+	static final int ROWS = 10000;
+
+	@Param({ "1", "500", "0" })
+	public int batchSize;
+
+	private Connection connection;
+	private PrintingDetails[] events;
+
+	@Setup
+	public void setUp() throws SQLException {
+		connection = DriverManager.getConnection(LoadThroughput.DEFAULT_URL);
+		connection.setAutoCommit(false);
+		events = LoadThroughput.generate(ROWS, 2000);
+	}
+
+	@Setup(Level.Invocation)
+	public void emptyTables() throws SQLException {
+		LoadThroughput.createTables(connection);
+	}
+
+	/** Same path as loadPrintingDetailsOfSudentToDB followed by the commit in cleanUp */
+	@Benchmark
+	@OperationsPerInvocation(ROWS)
+	public void loadPrintingDetailsOfSudentToDB() throws SQLException, IOException {
+		PrintingDetailsWriter writer = new PrintingDetailsWriter(connection, LoadThroughput.SCHEMA, SqlDialect.H2, batchSize,
+				new PrinterCostCache(connection, LoadThroughput.SCHEMA, PrinterCostCache.DEFAULT_REFRESH_MILLIS),
+				LoadThroughput.bulkLoader(batchSize));
+		for (PrintingDetails details : events)
+			writer.write(details);
+		writer.flush();
+		connection.commit();
+		writer.close();
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		connection.close();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Time to read and parse a whole export without loading it, on one thread and with the pipeline,
+ * and to read the same events back from a spool file.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The ParseCSVFileBenchmark class */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseCSVFileBenchmark {
+
+	@Param({ "1000", "100000", "1000000" })
+	public int rows;
+
+	private File export;
+	private File spool;
+
+	@Setup
+	public void setUp() throws IOException {
+		export = BenchmarkData.export(rows);
+		spool = File.createTempFile("events-"+rows+"-", ".spool");
+		spool.deleteOnExit();
+		EventSpool.convert(export, spool);
+	}
+
+	@Benchmark
+	public long readSpool(Blackhole blackhole) throws IOException {
+		EventSpool.Reader reader = new EventSpool.Reader(spool);
+		long count = 0;
+		try {
+			PrintingDetails details;
+			while ((details = reader.next()) != null) {
+				blackhole.consume(details);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	@Benchmark
+	public long parseCSVFile(Blackhole blackhole) throws IOException {
+		CsvEventReader csv = new CsvEventReader(export, CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN,
+				CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		Event307Parser parser = new Event307Parser();
+		try {
+			while (csv.next()) {
+				if (parser.scan(csv.field(0)) > 2)
+					blackhole.consume(parser.parse(csv.field(1), csv.field(2)));
+			}
+		} finally {
+			csv.close();
+		}
+		return csv.getRows();
+	}
+
+	@Benchmark
+	public long parseCSVFileInPipeline(final Blackhole blackhole) throws IOException, InterruptedException {
+		CsvEventReader csv = new CsvEventReader(export, CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN,
+				CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		try {
+			return new IngestPipeline(Runtime.getRuntime().availableProcessors(), 16).run(csv, new IngestPipeline.EventSink() {
+				public void write(PrintingDetails details) {
+					blackhole.consume(details);
+				}
+
+				public void failed(String content, String date, String server, String reason) {
+					throw new IllegalStateException(reason);
+				}
+			});
+		} finally {
+			csv.close();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Cost of stripping and parsing one event 307 message, the work done for every row of an export.
+ */
+
+package logExtraction;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** The ParserBenchmark class */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	private String[] messages;
+	private String[] dates;
+	private Event307Parser parser;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		messages = BenchmarkData.messages(1024);
+		dates = BenchmarkData.dates(1024);
+		parser = new Event307Parser();
+	}
+
+	/** Removing non printable characters, which stripNonPrintable used to do */
+	@Benchmark
+	public int stripNonPrintable() {
+		next = (next + 1) & 1023;
+		return parser.scan(messages[next]);
+	}
+
+	/** Stripping and extracting the details, which getLogDataFromContent used to do */
+	@Benchmark
+	public Object getLogDataFromContent() {
+		next = (next + 1) & 1023;
+		parser.scan(messages[next]);
+		return parser.parse(dates[next]);
+	}
+}
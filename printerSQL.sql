@@ -46,4 +46,7 @@ create table printer.prices
 CREATE SCHEMA printing;
 DROP TABLE printing.csgled;
 CREATE TABLE printing.csgled 
-( rollno nvarchar(11), remarks nvarchar(40), drcr nvarchar(2), charges float(8), mon float(8), mo nvarchar(7));
\ No newline at end of file
+( rollno nvarchar(11), remarks nvarchar(40), drcr nvarchar(2), charges float(8), mon float(8), mo nvarchar(7));
+-- Last event loaded from each source, created by the program if it does not exist
+CREATE TABLE printing.lastLogExtraction
+( source nvarchar(50), previousLogExtraction datetime, bannerID int);
\ No newline at end of file
@@ -0,0 +1,10 @@
+#!/bin/sh
+# Stand-in for the PowerShell export when running on Linux.
+# Writes a saved Get-WinEvent | ConvertTo-csv export to standard output.
+# Usage: canned-export.sh <export.csv> [start date] [end date]
+# The dates are accepted so that it can be used as extractor.command, but the whole file is written.
+if [ ! -f "$1" ]; then
+	echo "Export $1 not found" >&2
+	exit 1
+fi
+cat "$1"
@@ -0,0 +1,131 @@
+/*
+ * Loads the log of a long range of dates, such as a month that was missed, in parallel.
+ * The range is split into shards of a few days. Each shard is extracted and loaded by its own
+ * CreatePrinterLogCSV with its own connection, transaction and watermark, so a bad shard only rolls
+ * back itself and a shard that was loaded is skipped when the backfill is run again.
+ * Shards add their charges to csgled with MERGE, which the database serialises per student and month,
+ * so the totals are right when several shards charge the same student for the same month.
+ *
+ * Usage: BackfillRunner <start yyyy-MM-dd> <end yyyy-MM-dd> [days per shard] [workers]
+ */
+
+package logExtraction;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/** The BackfillRunner class */
+public class BackfillRunner {
+
+	static Logger slogger = Logger.getLogger(BackfillRunner.class);
+
+	static final int DEFAULT_SHARD_DAYS = 1;
+	static final int DEFAULT_WORKERS = 4;
+
+	/** Number of times a shard is tried before it is given up */
+	static final int ATTEMPTS = 2;
+
+	private final int shardDays;
+	private final int workers;
+
+	/** Shards that could not be loaded, named by their first day */
+	private final List<String> failedShards = Collections.synchronizedList(new ArrayList<String>());
+
+	public BackfillRunner(int shardDays, int workers) {
+		this.shardDays = Math.max(1, shardDays);
+		int usable = Math.max(1, workers);
+		if (usable > 1 && CreatePrinterLogCSV.getDialect().ledgerMerge("") == null) {
+			// Without MERGE two shards could both insert a csgled entry for the same student and month
+			slogger.warn("Database has no MERGE, loading shards one at a time.");
+			usable = 1;
+		}
+		this.workers = usable;
+	}
+
+	/** Splits the range into shards of whole days, the last one may be shorter */
+	List<Date[]> shards(Date startDate, Date endDate) {
+		List<Date[]> shards = new ArrayList<Date[]>();
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.setTime(startDate);
+		while (!cal.getTime().after(endDate)) {
+			Date shardStart = cal.getTime();
+			cal.add(Calendar.DATE, shardDays - 1);
+			Date shardEnd = cal.getTime().after(endDate) ? endDate : cal.getTime();
+			shards.add(new Date[] { shardStart, shardEnd });
+			cal.add(Calendar.DATE, 1);
+		}
+		return shards;
+	}
+
+	/**
+	 * Loads all the shards of the range, waiting until they are done.
+	 * @return the shards that could not be loaded
+	 */
+	public List<String> run(Date startDate, Date endDate) throws InterruptedException {
+		List<Date[]> shards = shards(startDate, endDate);
+		// Created once here, so that the shards do not all try to create the same tables
+		CreatePrinterLogCSV tables = new CreatePrinterLogCSV();
+		tables.createWatermarkTable();
+		tables.createMonthTables(startDate, endDate);
+		if (!tables.cleanUp()) {
+			slogger.fatal("Backfill not started, watermark and month tables could not be created.");
+			List<String> all = new ArrayList<String>();
+			for (Date[] shard : shards)
+				all.add(new SimpleDateFormat("yyyy-MM-dd").format(shard[0]));
+			return all;
+		}
+		slogger.info("Backfilling "+shards.size()+" shards of "+shardDays+" days with "+workers+" workers.");
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		for (final Date[] shard : shards) {
+			pool.execute(new Runnable() {
+				public void run() {
+					loadShard(shard[0], shard[1]);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		if (failedShards.isEmpty())
+			slogger.info("Backfill complete.");
+		else
+			slogger.fatal("Backfill incomplete, run it again to retry shards "+failedShards);
+		return new ArrayList<String>(failedShards);
+	}
+
+	/** Extracts and loads one shard in its own transaction */
+	private void loadShard(Date shardStart, Date shardEnd) {
+		String name = new SimpleDateFormat("yyyy-MM-dd").format(shardStart);
+		for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+			CreatePrinterLogCSV pLog = new CreatePrinterLogCSV();
+			pLog.setWatermarkSource("shard "+name);
+			pLog.createLogFile(shardStart, shardEnd);
+			if (pLog.cleanUp())
+				return;
+			slogger.warn("Shard "+name+" failed on attempt "+attempt+".");
+		}
+		failedShards.add(name);
+	}
+
+	public static void main(String[] args) throws ParseException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: BackfillRunner <start yyyy-MM-dd> <end yyyy-MM-dd> [days per shard] [workers]");
+			System.exit(2);
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		int shardDays = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_SHARD_DAYS;
+		int workers = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_WORKERS;
+		List<String> failed = new BackfillRunner(shardDays, workers).run(format.parse(args[0]), format.parse(args[1]));
+		System.exit(failed.isEmpty() ? 0 : 1);
+	}
+}
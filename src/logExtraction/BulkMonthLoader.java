@@ -0,0 +1,137 @@
+/*
+ * Loads the TEMP month tables with the bulk loader of the database instead of one insert per event.
+ * The rows of each month are written to a tab separated staging file while the log is parsed,
+ * and each file is loaded with a single BULK INSERT, LOAD DATA or CSVREAD when the run is flushed,
+ * inside the transaction of the run. The parser drops tabs and line breaks from the messages,
+ * so the values never contain the separators.
+ */
+
+package logExtraction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/** The BulkMonthLoader class */
+public class BulkMonthLoader {
+
+	static Logger slogger = Logger.getLogger(BulkMonthLoader.class);
+
+	private final File directory;
+	private final String serverDirectory;
+	private final SqlDialect dialect;
+
+	/** Staging file of each month written during the run */
+	private final Map<String, StagingFile> staged = new LinkedHashMap<String, StagingFile>();
+
+	private static class StagingFile {
+		File file;
+		Writer out;
+		long rows;
+	}
+
+	/**
+	 * @param directory where the staging files are written
+	 * @param serverDirectory the same directory as the database server sees it, null if it sees the same path
+	 */
+	public BulkMonthLoader(File directory, String serverDirectory, SqlDialect dialect) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory "+directory);
+		this.directory = directory;
+		this.serverDirectory = serverDirectory == null || serverDirectory.trim().length() == 0 ? null : serverDirectory.trim();
+		this.dialect = dialect;
+	}
+
+	/** Appends a row for the TEMP table of the month, in the order of its columns */
+	public void stage(String month, String rollno, String cdate, String time, int pages, String printer,
+			float charges, int line, String filename) throws IOException {
+		StagingFile staging = staged.get(month);
+		if (staging == null) {
+			staging = new StagingFile();
+			// Shards of a backfill stage the same months at the same time
+			staging.file = File.createTempFile("TEMP"+month+"-", ".tsv", directory);
+			staging.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(staging.file), dialect.bulkCharset()),
+					64 * 1024);
+			staged.put(month, staging);
+		}
+		Writer out = staging.out;
+		out.write(rollno);
+		out.write('\t');
+		out.write(cdate);
+		out.write('\t');
+		out.write(time);
+		out.write('\t');
+		out.write(Integer.toString(pages));
+		out.write('\t');
+		out.write(printer);
+		out.write('\t');
+		// Plain digits, the bulk loaders do not all read exponents
+		out.write(new BigDecimal(Float.toString(charges)).toPlainString());
+		out.write('\t');
+		out.write(Integer.toString(line));
+		out.write('\t');
+		out.write(filename);
+		out.write(dialect.bulkRowTerminator());
+		staging.rows++;
+	}
+
+	/** Path of the staging file for the statement loading it */
+	private String loadPath(File file) {
+		if (serverDirectory == null)
+			return file.getAbsolutePath();
+		String separator = serverDirectory.endsWith("/") || serverDirectory.endsWith("\\") ? "" : File.separator;
+		return serverDirectory + separator + file.getName();
+	}
+
+	/** Loads every staged month into its TEMP table, the tables must exist. The changes are not committed. */
+	public void load(Connection connection, String schema) throws IOException, SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			Iterator<Map.Entry<String, StagingFile>> months = staged.entrySet().iterator();
+			while (months.hasNext()) {
+				Map.Entry<String, StagingFile> entry = months.next();
+				StagingFile staging = entry.getValue();
+				staging.out.close();
+				long start = System.nanoTime();
+				statement.executeUpdate(dialect.bulkLoad(schema, "TEMP"+entry.getKey(), loadPath(staging.file)));
+				IngestMetrics.get().insertBatch.record(System.nanoTime() - start);
+				slogger.info("Bulk loaded "+staging.rows+" rows into TEMP"+entry.getKey()+" in "
+						+(System.nanoTime() - start) / 1000000+" ms");
+				delete(staging.file);
+				months.remove();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/** Deletes the staging files that were not loaded */
+	public void close() {
+		for (StagingFile staging : staged.values()) {
+			try {
+				staging.out.close();
+			} catch (IOException e) {
+				slogger.warn("Cannot close staging file "+staging.file+". "+e.getMessage());
+			}
+			delete(staging.file);
+		}
+		staged.clear();
+	}
+
+	private static void delete(File file) {
+		if (!file.delete())
+			slogger.warn("Cannot delete staging file "+file);
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * A small pool of database connections, so that the shards of a backfill and the writers of a run
+ * reuse connections instead of logging in for each one. Connections are opened when none is free,
+ * there is no limit on how many are in use, and at most maxIdle are kept open while not in use.
+ * Connections are handed out without auto commit, and whatever was not committed is rolled back
+ * when a connection is given back.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/** The ConnectionPool class */
+public class ConnectionPool {
+
+	static Logger slogger = Logger.getLogger(ConnectionPool.class);
+
+	private final String url;
+	private final String username;
+	private final String password;
+	private final int maxIdle;
+
+	private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final AtomicInteger opened = new AtomicInteger();
+
+	/**
+	 * @param username null when the url holds the credentials
+	 * @param maxIdle connections kept open when they are given back
+	 */
+	public ConnectionPool(String url, String username, String password, int maxIdle) {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.maxIdle = maxIdle;
+	}
+
+	/** A free connection, opening one if none is free */
+	public Connection borrow() throws SQLException {
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			idleCount.decrementAndGet();
+			if (!connection.isClosed())
+				break;
+		}
+		if (connection == null) {
+			connection = username == null ? DriverManager.getConnection(url) : DriverManager.getConnection(url, username, password);
+			slogger.info("Opened connection "+opened.incrementAndGet()+" to "+url);
+		}
+		connection.setAutoCommit(false);
+		return connection;
+	}
+
+	/** Gives a connection back, rolling back anything that was not committed */
+	public void release(Connection connection) {
+		try {
+			if (connection.isClosed())
+				return;
+			if (!connection.getAutoCommit())
+				connection.rollback();
+			if (idleCount.incrementAndGet() <= maxIdle) {
+				idle.offer(connection);
+				return;
+			}
+			idleCount.decrementAndGet();
+			connection.close();
+		} catch (SQLException e) {
+			slogger.warn("Cannot give back database connection. "+e.getMessage());
+			try {
+				connection.close();
+			} catch (SQLException ignored) {
+				// It is not used again either way
+			}
+		}
+	}
+
+	/** Closes the connections that are not in use */
+	public void close() {
+		Connection connection;
+		while ((connection = idle.poll()) != null) {
+			idleCount.decrementAndGet();
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				slogger.warn("Cannot close database connection. "+e.getMessage());
+			}
+		}
+	}
+}
@@ -13,20 +13,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Properties;
 /** Used for apache logging */
 import org.apache.log4j.Logger;
-/** Used for parsing the columns of CSV */
-import com.douglasjose.tech.csv.Csv;
-import com.douglasjose.tech.csv.CsvFactory;
 
 /**
  * @author Varadhan
@@ -42,10 +39,10 @@ public class CreatePrinterLogCSV {
 	/** Configuration for database and where to store CSV files are given in propertiesFile */
 	static final String propertiesFile = "printerLog.properties";
 	
-	/** .bat file is created and run so that java can wait until it completes.
-	 * Otherwise java does not wait for piped process to exit
-	 */
-	static final String powershellFile = "printerLog.ps1";
+	/** Columns of the Get-WinEvent export that are used: the message, TimeCreated and MachineName */
+	static final int MESSAGE_COLUMN = 0;
+	static final int TIME_CREATED_COLUMN = 16;
+	static final int MACHINE_NAME_COLUMN = 14;
 	
 	/** Default CSV file location set to current directory */
 	static String csvFileLocation = ".";
@@ -58,21 +55,107 @@ public class CreatePrinterLogCSV {
 	private static String dbName;
 	private static String schema;
 	private Connection connection = null;	
+	
+	/** Connections shared by all the runs in this process, such as the shards of a backfill */
+	private static ConnectionPool sharedPool;
+	
+	/** Pool the connection of this run came from, null when it was given to the constructor */
+	private ConnectionPool connectionPool;
+	
+	/** Number of connections the events are written through at once, 1 for the connection of the run only */
+	private static int writers = 1;
+	
+	/** Connections kept open by the pool while they are not in use */
+	private static int poolIdle = 8;
 
 	/** In case transaction fails commit is not done on data into database. */
 	private boolean transactionFailed = false;
 	
-	/** Used to prepare statement for query of db */
-	private PreparedStatement queryStatement;
+	/** Metrics of the process when the run started, the summary of the run is what was counted since */
+	private IngestMetrics metricsAtStart = IngestMetrics.get().snapshot();
+	
+	/** Last event loaded, to skip events that were loaded by an earlier run */
+	private Watermark watermark;
+	
+	/** Source the watermark is kept for, each backfill shard keeps its own */
+	private String watermarkSource = Watermark.LOCAL_SOURCE;
+	
+	/** Name given to the quarantine, spool and report files of the run */
+	private String runName = Watermark.LOCAL_SOURCE;
+	
+	/** How far the files of the drop directory are loaded, saved with the events when the daemon loads them */
+	private IngestOffsets offsets;
+	
+	/** Writes the extracted details into the month tables and csgled */
+	private PrintingDetailsWriter writer;
+	
+	/** Writes the extracted details through several connections when there is more than one writer */
+	private ShardedWriter shardedWriter;
+	
+	/** Number of month table inserts sent to the database together */
+	private static int batchSize = PrintingDetailsWriter.DEFAULT_BATCH_SIZE;
+	
+	/** Command producing the export instead of PowerShell, {start} and {end} stand for the dates */
+	private static String extractorCommand;
+	
+	/** Time the export may take before the extracting process is killed */
+	private static long extractorTimeoutMillis = ProcessEventSource.DEFAULT_TIMEOUT_MILLIS;
+	
+	/** Number of threads parsing messages, 0 to read, parse and load on one thread */
+	private static int parserThreads = 0;
+	
+	/** Time after which the costs table is read again */
+	private static long costRefreshMillis = PrinterCostCache.DEFAULT_REFRESH_MILLIS;
+	
+	/** Directory of the staging files of the bulk loader, empty to insert the month tables in batches */
+	private static String bulkDirectory = "";
+	
+	/** The staging directory as the database server sees it, needed for BULK INSERT when the server is another machine */
+	private static String bulkServerDirectory;
+	
+	/** Directory of the index of loaded events, none if empty */
+	private static String dedupDirectory = "dedup";
+	private static int dedupRetentionMonths = DedupIndex.DEFAULT_RETENTION_MONTHS;
+	
+	/** Shared by all the runs in this process, such as the shards of a backfill */
+	private static DedupIndex dedupIndex;
+	
+	/** Events of this run that are added to the dedup index on commit, one batch for each shard */
+	private DedupIndex.Batch[] dedup;
 	
-	/** Used to obtain results of query from database */
-	private ResultSet queryResult;
+	/** Directory where events that cannot be parsed or loaded are kept */
+	private static String quarantineDirectory = "quarantine";
 	
-	/** To avoid checking if month table exists each time in database. */
-	private String currentMonth = "";
+	/** Events of this run that could not be parsed or loaded, kept if the rest of the run is committed */
+	private Quarantine quarantine;
+	
+	/** Directory where the parsed events of each export are archived as a spool file, none if empty */
+	private static String spoolDirectory = "";
+	
+	/** Archive of the export being parsed */
+	private EventSpool.Writer spool;
+	
+	/** Directory where the usage reports of each run are written, none if empty */
+	private static String reportDirectory = "";
+	private static boolean reportJson = false;
+	private static int reportTopUsers = UsageReport.DEFAULT_TOP_USERS;
+	
+	/** Age and number of events at which the daemon commits what it has read */
+	private static long daemonBatchMillis = IngestDaemon.DEFAULT_BATCH_MILLIS;
+	private static int daemonBatchEvents = IngestDaemon.DEFAULT_BATCH_EVENTS;
+	
+	/** Usage of the events loaded by this run, one report for each shard */
+	private UsageReport[] reports;
+	
+	/**
+	 * Usage of the batches committed today, when the run is committed in batches as the daemon does.
+	 * It is written, and the metrics summary logged, once a day and when the daemon stops, instead of for every batch.
+	 */
+	private UsageReport dayReport;
+	private String reportDay = today();
 	
 	/** Details that will be extracted from log and stored in database */
-	class PrintingDetails {
+	static class PrintingDetails {
 		String regNo;
 		String documentName;
 		String printerName;
@@ -80,6 +163,7 @@ public class CreatePrinterLogCSV {
 		int pages;
 		double cost;
 		int bannerID;
+		String server;
 	}
 	
 	/** Gets executed when program starts */
@@ -97,11 +181,48 @@ public class CreatePrinterLogCSV {
 			dbName = logProperties.getProperty("db."+db+".name");
 			schema = logProperties.getProperty("db.schema");
 			connectionString = logProperties.getProperty("db."+db+".url")+dbName;
+			batchSize = Integer.parseInt(logProperties.getProperty("db.batch.size", 
+					String.valueOf(PrintingDetailsWriter.DEFAULT_BATCH_SIZE)).trim());
+			extractorCommand = logProperties.getProperty("extractor.command");
+			extractorTimeoutMillis = 60 * 1000L * Long.parseLong(logProperties.getProperty("extractor.timeout.minutes",
+					String.valueOf(ProcessEventSource.DEFAULT_TIMEOUT_MILLIS / 60000)).trim());
+			parserThreads = Integer.parseInt(logProperties.getProperty("ingest.parser.threads", "0").trim());
+			costRefreshMillis = 1000L * Long.parseLong(logProperties.getProperty("costs.refresh.seconds",
+					String.valueOf(PrinterCostCache.DEFAULT_REFRESH_MILLIS / 1000)).trim());
+			bulkDirectory = logProperties.getProperty("db.bulk.directory", bulkDirectory).trim();
+			bulkServerDirectory = logProperties.getProperty("db.bulk.server.directory");
+			writers = Integer.parseInt(logProperties.getProperty("db.writers", "1").trim());
+			poolIdle = Integer.parseInt(logProperties.getProperty("db.pool.idle", String.valueOf(poolIdle)).trim());
+			if(writers > 1 && bulkDirectory.length() > 0){
+				// BULK INSERT locks the whole month table, so the shards would only wait on each other
+				slogger.warn("Bulk load is done with a single writer, db.writers is ignored.");
+				writers = 1;
+			}
+			dedupDirectory = logProperties.getProperty("dedup.directory", dedupDirectory).trim();
+			dedupRetentionMonths = Integer.parseInt(logProperties.getProperty("dedup.retention.months",
+					String.valueOf(DedupIndex.DEFAULT_RETENTION_MONTHS)).trim());
+			quarantineDirectory = logProperties.getProperty("quarantine.directory", quarantineDirectory).trim();
+			spoolDirectory = logProperties.getProperty("spool.directory", spoolDirectory).trim();
+			reportDirectory = logProperties.getProperty("report.directory", reportDirectory).trim();
+			reportJson = "json".equalsIgnoreCase(logProperties.getProperty("report.format", "csv").trim());
+			reportTopUsers = Integer.parseInt(logProperties.getProperty("report.top.users",
+					String.valueOf(UsageReport.DEFAULT_TOP_USERS)).trim());
+			daemonBatchMillis = 1000L * Long.parseLong(logProperties.getProperty("daemon.batch.seconds",
+					String.valueOf(IngestDaemon.DEFAULT_BATCH_MILLIS / 1000)).trim());
+			daemonBatchEvents = Integer.parseInt(logProperties.getProperty("daemon.batch.events",
+					String.valueOf(IngestDaemon.DEFAULT_BATCH_EVENTS)).trim());
 						
-		}catch(IOException ioe){
+		}catch(IOException | NumberFormatException ioe){
 			slogger.warn( "Error loading properties file. "
 					+ioe.getMessage());
 		}
+		if(writers > 1 && dedupDirectory.length() == 0){
+			// Shards commit one after the other, the events of the shards that did commit before one failed are
+			// read again by the next run, and only the dedup index keeps them from being charged twice
+			slogger.fatal("db.writers is "+writers+" but dedup.directory is empty. Writing through several connections"
+					+" needs the dedup index, set dedup.directory or db.writers=1.");
+			throw new IllegalStateException("db.writers="+writers+" needs dedup.directory");
+		}
 	}
 	
 	/** Setting up database connection */
@@ -110,8 +231,12 @@ public class CreatePrinterLogCSV {
 			slogger.info("Trying to create database connection.");		
 			try {
 				Class.forName("net.sourceforge.jtds.jdbc.Driver");
-				connection = DriverManager.getConnection(connectionString,dbUsername,dbPassword);
-				connection.setAutoCommit(false);
+				synchronized(CreatePrinterLogCSV.class){
+					if(sharedPool == null)
+						sharedPool = new ConnectionPool(connectionString, dbUsername, dbPassword, poolIdle);
+				}
+				connectionPool = sharedPool;
+				connection = connectionPool.borrow();
 				slogger.info("Connected with connection string "+connectionString);
 			} catch (SQLException | ClassNotFoundException e) {
 				slogger.fatal( "Cannot create database connection."
@@ -129,23 +254,153 @@ public class CreatePrinterLogCSV {
 		createDatabaseConnection();
 	}
 	
-	/** Used to get the last date when the log extraction was done from table stored in database */
-	 public String getPreviousExecutionDate(){
-		//TODO: Ask sir on what table stores prev execution date.
-		String prevExecQuery = "SELECT * FROM "+schema+".TABLE";
-		try {
-			queryStatement = connection.prepareStatement(prevExecQuery);
-			queryResult = queryStatement.executeQuery();
-			if(queryResult.next()){
-				return queryResult.getTimestamp("previousLogExtraction").toString();
+	/** Uses a connection that was already opened, such as one to an embedded database for testing */
+	CreatePrinterLogCSV(Connection connection){
+		this.connection = connection;
+	}
+	
+	/** Takes the connections from the given pool, such as one to an embedded database for testing */
+	CreatePrinterLogCSV(ConnectionPool pool) throws SQLException{
+		connectionPool = pool;
+		connection = pool.borrow();
+	}
+	
+	/** Loads the last event loaded by earlier runs the first time it is needed, null when no watermark is kept */
+	private Watermark getWatermark(){
+		if(watermark == null && watermarkSource != null){
+			try {
+				watermark = Watermark.load(connection, schema, watermarkSource);
+			} catch (SQLException e) {
+				slogger.fatal( "Unable to get previous date of execution. "
+						+e.getMessage());
+				transactionFailed = true;
 			}
-		} catch (SQLException e) {
-			slogger.fatal( "Unable to get previous date of execution. "
+		}
+		return watermark;
+	}
+	
+	/** Opens the index of loaded events the first time it is needed, null if it is not used */
+	private DedupIndex.Batch getDedup(int shard){
+		if(dedup == null && dedupDirectory.length() > 0 && !transactionFailed){
+			try {
+				synchronized(CreatePrinterLogCSV.class){
+					if(dedupIndex == null)
+						dedupIndex = new DedupIndex(new File(dedupDirectory), dedupRetentionMonths);
+				}
+				// The events of each shard are added to the index when that shard commits
+				dedup = new DedupIndex.Batch[isSharded() ? writers : 1];
+				for(int i = 0; i < dedup.length; i++)
+					dedup[i] = dedupIndex.begin();
+			} catch (IOException e) {
+				slogger.fatal( "Unable to open dedup index. "
+						+e.getMessage());
+				transactionFailed = true;
+			}
+		}
+		return dedup == null ? null : dedup[shard];
+	}
+	
+	/** Keeps the watermark under another name, so that a part of a backfill can resume on its own, null to keep none */
+	void setWatermarkSource(String source){
+		watermarkSource = source;
+		watermark = null;
+		if(source != null)
+			setRunName(source);
+	}
+	
+	/** Names the files written by the run, which are named after the watermark source otherwise */
+	void setRunName(String name){
+		runName = name.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+	
+	/**
+	 * Loads into another database than the one of printerLog.properties, with the index of loaded events
+	 * and the quarantine kept in the given directory, such as for a load test on an embedded database.
+	 */
+	static synchronized void useDatabase(String database, String databaseSchema, File directory){
+		db = database;
+		schema = databaseSchema;
+		dedupDirectory = new File(directory, "dedup").getPath();
+		dedupIndex = null;
+		quarantineDirectory = new File(directory, "quarantine").getPath();
+	}
+	
+	/** Reads how far the files of the drop directory are loaded */
+	IngestOffsets loadOffsets() throws SQLException{
+		return IngestOffsets.load(connection, schema);
+	}
+	
+	/** Saves the offsets with the events of the run */
+	void setOffsets(IngestOffsets offsets){
+		this.offsets = offsets;
+	}
+	
+	/** Creates the quarantine the first time it is needed, named after the watermark source */
+	private Quarantine getQuarantine(){
+		if(quarantine == null)
+			quarantine = new Quarantine(new File(quarantineDirectory), runName);
+		return quarantine;
+	}
+	
+	/** Creates the reports of the writers the first time they are needed, null if no report is made */
+	private UsageReport[] getReports(){
+		if(reports == null && reportDirectory.length() > 0){
+			reports = new UsageReport[isSharded() ? writers : 1];
+			for(int i = 0; i < reports.length; i++)
+				reports[i] = new UsageReport();
+		}
+		return reports;
+	}
+	
+	/** The usage of the events loaded by the run, with the reports of all the shards added up */
+	private UsageReport mergeReports(){
+		UsageReport report = reports[0];
+		for(int i = 1; i < reports.length; i++)
+			report.merge(reports[i]);
+		return report;
+	}
+	
+	/** Writes the usage of the events loaded */
+	private void writeReport(UsageReport report){
+		String name = "usage-"+runName+"-"+new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date());
+		try {
+			report.write(new File(reportDirectory), name, reportJson, reportTopUsers);
+		} catch (IOException e) {
+			// The events are loaded, the reports can still be made from the month tables
+			slogger.warn("Cannot write usage reports. "+e.getMessage());
+		}
+	}
+	
+	/** Keeps an event that could not be parsed, failing the run if it cannot be kept */
+	private void quarantine(CharSequence content, CharSequence date, CharSequence server, String reason){
+		slogger.warn("Quarantined event of "+date+". "+reason);
+		try {
+			getQuarantine().write(content, date, server, reason);
+		} catch (IOException e) {
+			slogger.fatal("Cannot write quarantine file. "
 					+e.getMessage());
+			slogger.fatal("Error occured on content "+content);
+			transactionFailed = true;
 		}
+	}
+	
+	/** Used to get the time of the last event loaded by earlier runs, from the lastLogExtraction table */
+	 public String getPreviousExecutionDate(){
+		Watermark mark = getWatermark();
+		if(mark != null && mark.getLoadedTime() != null)
+			return mark.getLoadedTime().toString();
 		return null;
 	}
 	 
+	/** Extracts everything printed since the last event loaded, or since yesterday if nothing has been loaded */
+	public void createLogFileSinceLastRun(){
+		Watermark mark = getWatermark();
+		if(mark == null)
+			return;
+		Date startDate = mark.getLoadedTime() != null ? mark.getLoadedTime() : getYesterDay();
+		createLogFile(startDate, new Date());
+	}
+	
 	private void createLogFileUptoYesterday(Date startDate){
 		Calendar yesterday = GregorianCalendar.getInstance();
 		yesterday.setTime(getYesterDay());		
@@ -153,9 +408,8 @@ public class CreatePrinterLogCSV {
 	}
 	
 	/**
-	 * Used to create log files from windows log and load it into database
-	 * Command to get csv file from windows
-	 * get-winevent -FilterHashTable @{ logname = 'Microsoft-Windows-PrintService/Operational';StartTime = '"+givenDate+" 12:00:01 AM'; EndTime = '"+yesterday+" 13:59:00'; ID = 307 ;} | ConvertTo-csv| Out-file "+csvFileLocation+"\\"+givenDate.replaceAll("/", "-")+".csv\""
+	 * Used to extract the log of the given dates from windows and load it into database.
+	 * The export is read from the output of the extracting process while it is running, see ProcessEventSource.
 	 * In case event is to be executed as powershell file then permissions have to be set for executing file. Refer help manual of powershell.
 	 */
 	public void createLogFile(Date startDate,Date endDate){
@@ -167,37 +421,223 @@ public class CreatePrinterLogCSV {
 			slogger.warn("End date greater than today resetting end date.");
 			endDate = new Date();
 		}
-		Runtime commandPrompt = Runtime.getRuntime();		
-		Calendar cal = GregorianCalendar.getInstance();				
-		cal.setTime(startDate);		
-		String givenDate = cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR);
-		cal.setTime(endDate);
-		String beforeDay = cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR);
-		String file =  csvFileLocation+"\\"+givenDate.replaceAll("/", "-")+"_to_"+beforeDay.replaceAll("/", "-")+".csv";
-		File f = new File(file);
-		String completedFile = "completed.txt";
-		slogger.info("Creating log for "+givenDate);		
+		Watermark mark = getWatermark();
+		if(mark != null && mark.getLoadedTime() != null && mark.getLoadedTime().after(startDate)){
+			slogger.info("Events up to "+mark.getLoadedTime()+" are already loaded.");
+			startDate = mark.getLoadedTime();
+		}
+		slogger.info("Creating log for "+startDate+" to "+endDate);
+		loadEvents(new ProcessEventSource(extractorCommand, extractorTimeoutMillis), startDate, endDate);
+	}
+	
+	/** Creates the writer the first time it is needed, which reads the month tables that exist */
+	private PrintingDetailsWriter getWriter() throws SQLException, IOException{
+		if(writer == null){
+			writer = new PrintingDetailsWriter(connection, schema, SqlDialect.forName(db), batchSize,
+					new PrinterCostCache(connection, schema, costRefreshMillis),
+					bulkDirectory.length() > 0 ? new BulkMonthLoader(new File(bulkDirectory), bulkServerDirectory, getDialect()) : null);
+			writer.setQuarantine(getQuarantine());
+			if(getReports() != null)
+				writer.setReport(reports[0]);
+		}
+		return writer;
+	}
+	
+	/** Whether the events are written through several connections of the pool */
+	private boolean isSharded(){
+		return writers > 1 && connectionPool != null;
+	}
+	
+	/** Takes the connections of the writers from the pool the first time they are needed */
+	private ShardedWriter getShardedWriter() throws SQLException{
+		if(shardedWriter == null){
+			slogger.info("Writing through "+writers+" connections.");
+			shardedWriter = new ShardedWriter(connectionPool, schema, SqlDialect.forName(db), batchSize, writers, costRefreshMillis);
+			shardedWriter.setQuarantine(getQuarantine());
+			if(getReports() != null)
+				shardedWriter.setReports(reports);
+		}
+		return shardedWriter;
+	}
+	
+	/** Creates the table of the watermarks, so that runs started together do not all try to create it */
+	void createWatermarkTable(){
+		try {
+			Watermark.createTableIfRequired(connection, schema);
+		} catch (SQLException e) {
+			slogger.fatal( "Unable to create watermark table. "
+					+e.getMessage());
+			transactionFailed = true;
+		}
+	}
+	
+	/** Creates the month tables of the dates before anything is loaded into them */
+	void createMonthTables(Date startDate, Date endDate){
+		try {
+			if(isSharded())
+				getShardedWriter().createMonths(startDate, endDate);
+			else
+				getWriter().createMonths(startDate, endDate);
+		} catch (SQLException | IOException e) {
+			slogger.fatal( "Unable to create month tables. "
+					+e.getMessage());
+			transactionFailed = true;
+		}
+	}
+	
+	/** Loads the events produced by the source into the database */
+	public void loadEvents(EventSource source, Date startDate, Date endDate){
+		if(!connect())
+			return;
+		if(startDate != null && endDate != null){
+			createMonthTables(startDate, endDate);
+			if(transactionFailed)
+				return;
+		}
+		CsvEventReader csv;
 		try {
-			File completedSignal = new File(completedFile);
-			if(completedSignal.exists())
-				completedSignal.delete();
-			String command ="get-winevent -FilterHashTable @{ logname = 'Microsoft-Windows-PrintService/Operational';StartTime = '"+givenDate+" 12:00:01 AM'; EndTime = '"+beforeDay+" 23:59:59 ';  ID = 307 ;} | ConvertTo-csv| Out-file "+ file
-					+";new-item "+completedFile+"  -type file;";			
-			commandPrompt.exec("powershell -NonInteractive -Command "+ command);
-			while(!completedSignal.exists())
-				;
-			completedSignal.delete();
-			
+			csv = source.open(startDate, endDate);
 		} catch (IOException e) {
 			slogger.fatal( "Unable to execute command and create log file. "
 					+ e.getMessage());
-			System.exit(1);
-		} catch (Exception e) {
-			slogger.fatal( "Unable to execute command and create log file. Exiting.."
+			transactionFailed = true;
+			return;
+		}
+		openSpool();
+		parseEvents(csv);
+		try {
+			source.close();
+		} catch (IOException e) {
+			slogger.fatal( "Export of log did not complete. "
 					+ e.getMessage());
-			System.exit(1);
+			transactionFailed = true;
+		}
+		closeSpool();
+	}
+	
+	/** Starts archiving the parsed events if a spool directory is given */
+	private void openSpool(){
+		if(spoolDirectory.length() == 0)
+			return;
+		File directory = new File(spoolDirectory);
+		String name = "events-"+runName+"-"+new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date())+".spool";
+		try {
+			if(!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Cannot create directory "+directory);
+			spool = new EventSpool.Writer(new File(directory, name));
+		} catch (IOException e) {
+			// The archive is a copy, loading goes on without it
+			slogger.warn("Cannot create spool file. "+e.getMessage());
+		}
+	}
+	
+	/** Keeps the archive if the whole export was read */
+	private void closeSpool(){
+		if(spool == null)
+			return;
+		if(transactionFailed){
+			spool.abort();
+		}else{
+			try {
+				spool.close();
+				slogger.info("Archived "+spool.getCount()+" events in "+spoolDirectory);
+			} catch (IOException e) {
+				slogger.warn("Cannot write spool file. "+e.getMessage());
+			}
+		}
+		spool = null;
+	}
+	
+	/** Archives an event parsed from the export and loads it */
+	private void loadParsed(PrintingDetails details){
+		if(spool != null){
+			try {
+				spool.write(details);
+			} catch (IOException e) {
+				slogger.warn("Cannot write spool file, the export is not archived. "+e.getMessage());
+				spool.abort();
+				spool = null;
+			}
+		}
+		loadPrintingDetailsOfSudentToDB(details);
+	}
+	
+	/** Same as loadParsed for an event of a merged export, which is read from the buffer of its export */
+	private void loadBuffered(EventBuffer events, int row){
+		if(spool != null){
+			try {
+				spool.write(events, row);
+			} catch (IOException e) {
+				slogger.warn("Cannot write spool file, the export is not archived. "+e.getMessage());
+				spool.abort();
+				spool = null;
+			}
+		}
+		Watermark mark = getWatermark();
+		if(mark != null && !mark.accept(new Timestamp(events.time(row)), events.bannerID(row)))
+			return;
+		int shard = isSharded() ? ShardedWriter.shardOf(events.regNo(row), writers) : 0;
+		DedupIndex.Batch loaded = getDedup(shard);
+		try{
+			if(loaded != null && !loaded.add(events, row)){
+				IngestMetrics.get().duplicatesSkipped.incrementAndGet();
+				return;
+			}
+		} catch (IOException e) {
+			slogger.fatal("Cannot read dedup index. "
+					+e.getMessage());
+			transactionFailed = true;
+			return;
+		}
+		try{
+			if(isSharded())
+				getShardedWriter().write(events, row);
+			else
+				getWriter().write(events, row);
+		} catch (Exception e) {
+			// Rows the database rejects are quarantined by the writer, so this is the connection or the disk failing
+			slogger.fatal("Problem with loading data into database."
+					+e.getMessage());
+			slogger.info("Values of incorrect data: "+events.regNo(row)+" "+events.printerName(row)+" "+events.bannerID(row)
+					+" "+events.documentName(row)+" "+new Timestamp(events.time(row)));
+			transactionFailed = true;
+		}
+	}
+	
+	/**
+	 * Loads the events of a spool file, such as an archived export or one converted from a CSV export.
+	 * The events were parsed when the spool file was written, so only the database is loaded.
+	 * The watermark is neither checked nor moved, as an archived export is usually older than it,
+	 * so events that are already loaded are only skipped by the dedup index.
+	 */
+	public void loadSpool(File file){
+		slogger.info("Loading spool file "+file);
+		setWatermarkSource(null);
+		setRunName("spool");
+		if(dedupDirectory.length() == 0)
+			slogger.warn("No dedup index is kept, events of the spool file that are already loaded will be loaded twice.");
+		IngestMetrics metrics = IngestMetrics.get();
+		EventSpool.Reader reader = null;
+		try {
+			reader = new EventSpool.Reader(file);
+			PrintingDetails details;
+			while((details = reader.next()) != null){
+				metrics.rowsRead.incrementAndGet();
+				loadPrintingDetailsOfSudentToDB(details);
+			}
+		} catch (IOException e) {
+			slogger.fatal("Cannot read spool file. "
+					+e.getMessage());
+			transactionFailed = true;
+		} finally {
+			if(reader != null){
+				try {
+					reader.close();
+				} catch (IOException e) {
+					slogger.warn("Cannot close spool file. "+e.getMessage());
+				}
+			}
 		}
-		parseCSVFile(f);
 	}
 	
 	/** Get yesterdays date */
@@ -214,146 +654,98 @@ public class CreatePrinterLogCSV {
 		createLogFileUptoYesterday(getYesterDay());
 	}
 	
-	/** CSV file contains some non printable characters that must be stripped. */
-	private String stripNonPrintable(String s){	
-		char[] oldChars = new char[s.length()];
-	    s.getChars(0, s.length(), oldChars, 0);
-	    char[] newChars = new char[s.length()];
-	    int newLen = 0;
-	    for (int j = 0; j < s.length(); j++) {
-	        char ch = oldChars[j];
-	        if (ch >= ' ') {
-	            newChars[newLen] = ch;
-	            newLen++;
-	        }
-	    }
-	    s = new String(newChars, 0, newLen);
-	    return s;
-	}
-	
-	
 	/**
 	 * getLogDataFromContent
 	 * 
-	 * Example format of content
-	 * Document 1790, Microsoft Word - VIPUL_KUMAR_ECE owned by 108109109 on \\10.1.34.21 was printed on A4-4515x through port 10.0.0.43_2.  Size in bytes: 201625. Pages printed: 3. No user action is required.
+	 * The format of the content is described in Event307Parser.
 	 * Here sometimes IP address may be replaced by PC name in case DNS is used. So no point in parsing ip address
 	 * The Document name can also be arbitrarily long as files printed driectly from URL's such as attachment in gmail may have.
 	 * Hence the database must have a huge value for storing file names. (Field size of 200 may be small.)
 	 * Other information contained in the CSV file are mostly not required.
 	 * 
-	 * @param the content to be parsed and timestamp obtained from CSV file
+	 * @param parser holding the content that was scanned, timestamp and print server obtained from CSV file
 	 * @return the details extracted from content and encapsulated as PrintingDetails
 	 */
-	@SuppressWarnings("deprecation")
-	private PrintingDetails getLogDataFromContent(String content,String date){
-		PrintingDetails temp = new PrintingDetails();
-		String ownedBy = "owned by ";
-		String wasPrintedOn = "was printed on ";
-		String pagesPrinted = "Pages printed: ";		
-		String banner;
-		//System.out.println(content);
-		String backUpContet = new String(content);
-		
-		// Get document <id>
-		banner = content.substring("Document ".length(),content.indexOf(","));		
-		
-		// Strip out "Document <id>" from content 
-		content = content.substring(content.indexOf(",")+1);
-		
-		// Name of document printed starts immediately
-		int startIndexOwnedBy = content.lastIndexOf(ownedBy);		
-		
-		int startIndexPagesPrinted = content.lastIndexOf(pagesPrinted);
-		
-		int startIndexWasPrintedOn = content.lastIndexOf(wasPrintedOn);
-		
-		
-		
+	private PrintingDetails getLogDataFromContent(Event307Parser parser,CharSequence date,CharSequence server){
 		try{
-			temp.bannerID = Integer.parseInt(banner);
-			temp.regNo = content.substring((startIndexOwnedBy+ownedBy.length()));
-			temp.regNo = temp.regNo.substring(0, temp.regNo.indexOf("on")-1);
-			temp.documentName = content.substring(0, startIndexOwnedBy - 1);
-			
-		}catch(Exception e){
-			slogger.fatal("Exception caught.. "
-					+e.getMessage());
-			slogger.fatal("Error occured on content "+backUpContet);
-			slogger.info("Values parsed: banner "+temp.bannerID+" regNo "+temp.regNo+" Doc "+temp.documentName);
-			transactionFailed = true;
+			return parser.parse(date, server);
+		}catch(IllegalArgumentException e){
+			IngestMetrics.get().parseFailures.incrementAndGet();
+			quarantine(parser.content(), date, server, e.getMessage());
 			return null;
 		}
-		String pages = content.substring(startIndexPagesPrinted + pagesPrinted.length());
-		pages = pages.substring(0, pages.indexOf("."));
-		
-		temp.pages = Integer.parseInt(pages);
-		
-		// Get the substring that starts with the printer name and then strip out printer name
-		temp.printerName = content.substring(startIndexWasPrintedOn+wasPrintedOn.length());		
-		temp.printerName = temp.printerName.substring(0, temp.printerName.indexOf(" through port"));
-			
-		// Uncomment to check what is printed.
-		/*
-		System.out.println("Documet name: "+temp.documentName+"\nRegno: "+temp.regNo);
-		System.out.println("Pages: "+temp.pages+ "\nPrinter Name: "+temp.printerName);
-		System.out.println("Date printed: "+date);
-		*/
-		
-		date = date.replaceAll("-", "/");
-		temp.printTime = new Timestamp(new Date(date).getTime());
-		
-		return temp;
 	}
+	
 	/**
 	 * parseCSVFile
 	 * 
-	 * Used to parse the CSV file obtained from windows logs using jcsv library in google projects 
+	 * Used to parse the CSV file obtained from windows logs.
 	 * @param file
 	 */
-	private void parseCSVFile(File file){		
+	void parseCSVFile(File file){
+		loadEvents(new FileEventSource(file), null, null);
+	}
+	
+	/**
+	 * parseEvents
+	 * 
+	 * The export is streamed record by record and only the message, TimeCreated and MachineName columns are extracted.
+	 * The #TYPE line and the column headers are skipped by the reader.
+	 * @param csv
+	 */
+	private void parseEvents(CsvEventReader csv){		
 		slogger.info("Trying to parse CSV file.");
-		Csv csv = CsvFactory.createOfficeCsv();
-		FileInputStream csvInput = null;
 		try {
-			csvInput = new FileInputStream (file);
-			csv.load(csvInput);
-			
-			// If number of rows less than 3 there is no content.
-			// The first line contains the type information and second line contains column headers
-			
-			if(csv.getRows() < 3 ){
-				slogger.warn("No content to parse in file");
-				return;
+			if(parserThreads > 0){
+				parseInPipeline(csv);
+			}else{
+				// CSV file contains some non printable characters that are stripped by the parser
+				Event307Parser parser = new Event307Parser();
+				IngestMetrics metrics = IngestMetrics.get();
+				
+				while (csv.next()) {			    
+				        metrics.rowsRead.incrementAndGet();
+				        long start = System.nanoTime();
+				        // Sometimes line may have only non-printable chars in that case all are striped and blank space remains
+				        if(parser.scan(csv.field(0)) > 2 ){				        
+					        PrintingDetails studentDetails = getLogDataFromContent(parser, csv.field(1), csv.field(2));
+					        metrics.parse.record(System.nanoTime() - start);
+					        if(studentDetails != null)
+					        	loadParsed(studentDetails);
+				        }			        
+				}
 			}
-			
-			String content,date;
-			
-			// Neglect first 3 rows
-			for (int i = 4; i < csv.getRows(); i++) {			    
-			        content = csv.get(i, 0);
-			        content = stripNonPrintable(content).trim();
-			        
-			        // Sometimes line may have only non-printable chars in that case all are striped and blank space remains
-			        if(content.length() > 2 ){				        
-				        date = csv.get(i, 16);
-				        date = stripNonPrintable(date);
-				        PrintingDetails studentDetails = getLogDataFromContent(content,date);
-				        loadPrintingDetailsOfSudentToDB(studentDetails);
-			        }			        
+			if(csv.getRows() == 0){
+				slogger.warn("No content to parse in file");
 			}
 		} catch (IOException e1) {
 			slogger.fatal("IO Error. "
 					+e1.getMessage());
 			transactionFailed = true;
 		}
-		if( csvInput != null )
-			try {
-				csvInput.close();
-			} catch (IOException e) {
-				slogger.warn("Unable to close file. "
-						+e.getMessage());
-			}
+	}
+	
+	/**
+	 * Reads and parses the file on other threads while the events are loaded into the database on this one.
+	 */
+	private void parseInPipeline(CsvEventReader csv) throws IOException{
+		slogger.info("Parsing with "+parserThreads+" parser threads.");
+		IngestPipeline pipeline = new IngestPipeline(parserThreads, 4 * parserThreads);
+		try {
+			pipeline.run(csv, new IngestPipeline.EventSink() {
+				public void write(PrintingDetails details) {
+					loadParsed(details);
+				}
+				
+				public void failed(String content, String date, String server, String reason) {
+					IngestMetrics.get().parseFailures.incrementAndGet();
+					quarantine(content, date, server, reason);
+				}
+			});
+		} catch (InterruptedException e) {
+			slogger.fatal("Interrupted while parsing CSV file.");
+			transactionFailed = true;
+		}
 	}
 	
 	/**
@@ -369,33 +761,296 @@ public class CreatePrinterLogCSV {
 		}
 	}
 	
+	/**
+	 * Loads the exports of several print servers at once, parsing them in parallel and loading their events in time order.
+	 * The events of different servers are told apart by the dedup index, no watermark is kept as
+	 * the banner IDs of different servers cannot be compared.
+	 */
+	public void loadExports(List<MultiServerIngest.Export> exports){
+		if(!connect())
+			return;
+		setWatermarkSource(null);
+		setRunName("merged");
+		if(dedupDirectory.length() == 0)
+			slogger.warn("No dedup index is kept, loading these exports again will load their events twice.");
+		int threads = parserThreads > 0 ? parserThreads : Math.min(exports.size(), Runtime.getRuntime().availableProcessors());
+		openSpool();
+		try {
+			long loaded = new MultiServerIngest(threads).run(exports, new MultiServerIngest.EventSink() {
+				public void range(Date startDate, Date endDate) {
+					createMonthTables(startDate, endDate);
+				}
+				
+				public void write(EventBuffer events, int row) {
+					loadBuffered(events, row);
+				}
+				
+				public void failed(String content, String date, String server, String reason) {
+					IngestMetrics.get().parseFailures.incrementAndGet();
+					quarantine(content, date, server, reason);
+				}
+			});
+			slogger.info("Merged "+loaded+" events of "+exports.size()+" print servers.");
+		} catch (IOException e) {
+			slogger.fatal("IO Error. "
+					+e.getMessage());
+			transactionFailed = true;
+		} catch (InterruptedException e) {
+			slogger.fatal("Interrupted while parsing exports.");
+			transactionFailed = true;
+		}
+		closeSpool();
+	}
+	
+	/**
+	 * Loads a quarantine file again once its events have been fixed, the file is renamed to .replayed when they are committed.
+	 * The watermark is neither checked nor moved, as the events are older than it. The dedup index still skips
+	 * events that did get loaded. Events failing again go to a new quarantine file.
+	 */
+	public void replayQuarantine(File file){
+		slogger.info("Replaying quarantined events of "+file);
+		setWatermarkSource(null);
+		setRunName("replay");
+		loadEvents(new FileEventSource(file), null, null);
+		if(cleanUp()){
+			File replayed = new File(file.getPath()+".replayed");
+			if(!file.renameTo(replayed))
+				slogger.warn("Cannot rename "+file+" to "+replayed+", it must not be replayed again.");
+		}
+	}
+	
+	/** Dialect of the database given by the db property */
+	static SqlDialect getDialect(){
+		return SqlDialect.forName(db);
+	}
+	
 	/**
 	 * Close all connections to database and other files. Commit changes to database.
+	 * @return whether the changes were committed
+	 */
+	boolean cleanUp(){
+		boolean committed = commitTransaction();
+		if ( reports != null && committed ){
+			writeReport(mergeReports());
+		}
+		close();
+		IngestMetrics.get().since(metricsAtStart).logSummary();
+		slogger.info("Completing service maintenance.");
+		return committed;
+	}
+	
+	/**
+	 * Commits what was loaded so far and goes on in a new transaction, keeping the connection, the writers
+	 * with their prepared statements, the month tables they know and the costs, as the daemon does every few seconds.
+	 * After a rollback the writers are made again, as the month tables they created may have been rolled back too,
+	 * and a connection of the pool is given back and another taken when the next events are loaded. If none can be
+	 * had then, those events fail in turn, so that the daemon tries again later instead of stopping.
+	 * The usage of the committed batches is added up and only written, with the metrics summary, when the day
+	 * changes or by endReportDay().
+	 * @return whether the changes were committed
 	 */
-	private void cleanUp(){
+	boolean commit(){
+		boolean committed = commitTransaction();
+		if(reports != null && committed){
+			if(dayReport == null)
+				dayReport = new UsageReport();
+			dayReport.merge(mergeReports());
+		}
+		if(!today().equals(reportDay))
+			endReportDay();
+		dedup = null;
+		quarantine = null;
+		reports = null;
+		if(!committed){
+			closeWriters();
+			watermark = null;
+			renewConnection();
+		}
+		transactionFailed = false;
+		if(writer != null){
+			writer.setQuarantine(getQuarantine());
+			writer.setReport(getReports() != null ? reports[0] : null);
+		}
+		if(shardedWriter != null){
+			shardedWriter.setQuarantine(getQuarantine());
+			if(getReports() != null)
+				shardedWriter.setReports(reports);
+		}
+		return committed;
+	}
+	
+	/** Writes the usage of the batches committed since the last day ended and logs the summary of the metrics */
+	void endReportDay(){
+		if(dayReport != null)
+			writeReport(dayReport);
+		dayReport = null;
+		IngestMetrics.get().since(metricsAtStart).logSummary();
+		metricsAtStart = IngestMetrics.get().snapshot();
+		reportDay = today();
+	}
+	
+	private static String today(){
+		return new SimpleDateFormat("yyyyMMdd").format(new Date());
+	}
+	
+	/** Gives back a connection that may have failed with the transaction, another is taken when the next events are loaded */
+	private void renewConnection(){
+		if(connectionPool == null || connection == null)
+			return;
+		connectionPool.release(connection);
+		connection = null;
+	}
+	
+	/** Takes a connection from the pool if the last one was given back, failing the run if there is none */
+	private boolean connect(){
+		if(connection != null)
+			return true;
+		try {
+			connection = connectionPool.borrow();
+			return true;
+		} catch (SQLException e) {
+			slogger.fatal( "Cannot create database connection."
+					+"\n"
+					+e.getMessage()
+					);
+			transactionFailed = true;
+			return false;
+		}
+	}
+	
+	/** Commits the transaction of the run, the dedup index and the quarantine, and writes the reports */
+	private boolean commitTransaction(){
+		boolean committed = false;
+		boolean[] shardsCommitted = null;
 		
 		try {
+			if( !transactionFailed ){
+				try {
+					if(writer != null)
+						writer.flush();
+					if(shardedWriter != null)
+						shardedWriter.flush();
+					if(watermark != null){
+						slogger.info("Skipped "+watermark.getSkipped()+" events loaded by earlier runs.");
+						watermark.save(connection, schema);
+					}
+					if(offsets != null)
+						offsets.save(connection, schema);
+					if(quarantine != null && dedup != null){
+						// Rows the database rejected were not loaded, so they are not added to the index
+						for(PrintingDetails rejected : quarantine.getRejected())
+							dedup[isSharded() ? ShardedWriter.shardOf(rejected.regNo, writers) : 0].remove(rejected);
+					}
+					if(dedup != null){
+						long duplicates = 0;
+						for(DedupIndex.Batch batch : dedup)
+							duplicates += batch.getDuplicates();
+						slogger.info("Skipped "+duplicates+" events found in the dedup index.");
+					}
+				} catch (SQLException e) {
+					slogger.fatal("Cannot write batched entries. "
+							+e.getMessage());
+					transactionFailed = true;
+				} catch (IOException e) {
+					slogger.fatal("Cannot write staged entries. "
+							+e.getMessage());
+					transactionFailed = true;
+				} catch (InterruptedException e) {
+					slogger.fatal("Interrupted while writing entries.");
+					transactionFailed = true;
+				}
+			}
+			if( !transactionFailed && shardedWriter != null ){
+				// The watermark is committed last, so the events of shards that were rolled back are loaded again
+				slogger.info("Comitting "+shardedWriter.getShardCount()+" shards");
+				shardsCommitted = shardedWriter.commit();
+				for(boolean shardCommitted : shardsCommitted)
+					if(!shardCommitted)
+						transactionFailed = true;
+			}
 			if( !transactionFailed ){
 				slogger.info("Comitting transaction");
+				long start = System.nanoTime();
 				connection.commit();
+				IngestMetrics.get().commit.record(System.nanoTime() - start);
+				committed = true;
 			}else{				
 				slogger.fatal("Aborting transaction commit due to failed transactions.");
-				connection.rollback();
+				if(shardedWriter != null && shardsCommitted == null)
+					shardedWriter.rollback();
+				if(connection != null)
+					connection.rollback();
 			}
 		} catch (SQLException e1) {
 			slogger.fatal("Cannot commit changes. "
 					+e1.getMessage());
 		}
+		if ( dedup != null ){
+			for(int i = 0; i < dedup.length; i++){
+				// A shard that committed has loaded its events even if the run as a whole failed
+				boolean loaded = shardsCommitted != null ? shardsCommitted[i] : committed;
+				if ( loaded ){
+					try {
+						dedup[i].commit();
+					} catch (IOException e) {
+						// The watermark still keeps the next run from loading these events again
+						slogger.fatal("Loaded events could not be added to the dedup index. "
+								+e.getMessage());
+					}
+				}else{
+					dedup[i].abort();
+				}
+			}
+		}
+		if ( quarantine != null ){
+			if ( committed ){
+				try {
+					quarantine.commit();
+				} catch (IOException e) {
+					slogger.fatal("Quarantined events could not be kept, they are in "+quarantineDirectory+". "
+							+e.getMessage());
+				}
+			}else{
+				quarantine.abort();
+			}
+		}
+		return committed;
+	}
+	
+	/** Closes the writers and gives back or closes the connection, anything not committed is rolled back */
+	void close(){
 		slogger.info("Closing all resources");
+		closeWriters();
 		if ( connection != null ){
+			if ( connectionPool != null ){
+				connectionPool.release(connection);
+			}else{
+				try {
+					connection.close();
+				} catch (SQLException e) {
+					slogger.warn("Cannot close database connection. "
+							+e.getMessage());
+				}
+			}
+			connection = null;
+		}
+	}
+	
+	/** Closes the statements of the writers and gives back the connections of the shards */
+	private void closeWriters(){
+		if ( writer != null ){
 			try {
-				connection.close();
+				writer.close();
 			} catch (SQLException e) {
-				slogger.warn("Cannot close database connection. "
+				slogger.warn("Cannot close statements. "
 						+e.getMessage());
 			}
+			writer = null;
+		}
+		if ( shardedWriter != null ){
+			shardedWriter.close();
+			shardedWriter = null;
 		}
-		slogger.info("Completing service maintenance.");
 	}
 	
 	/**
@@ -403,141 +1058,93 @@ public class CreatePrinterLogCSV {
 	 * @param details
 	 */
 	public void loadPrintingDetailsOfSudentToDB(PrintingDetails details){	
-		/**
-		 * HOW TO: Get print date to check if *****temporary***** month table exists.
-		 * If exists enter values into that. If not create a table.
-		 * For each entry inserted in month table if rollNo exists in CSGLED update that
-		 * otherwise create a new entry in CSGLED. 
-		 */		
-		if(details.regNo.length() >= 11)
-			details.regNo = details.regNo.substring(0,10);
-		if(details.documentName.length() >= 100)
-			details.documentName = details.documentName.substring(0,99);
-		Calendar cal = GregorianCalendar.getInstance();
-		cal.setTime(details.printTime);
-		Date dt = cal.getTime();
-		//System.out.println(dt+ " "+details.printTime);
-		String date = dt.toString();
-		String monthMMM = date.substring(4,7);
-		String yearYYYY = date.substring(date.length()-4);
-		//System.out.println("month: "+monthMMM+" year: "+yearYYYY);
-		
-		String monthTableExistsQuery = "SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME LIKE ?";
-		String createMonthTableQuery = "CREATE TABLE "+
-				schema+".TEMP"+monthMMM+yearYYYY+ "("
-					+"	rollno nvarchar(11),	"
-					+"	cdate nvarchar(10),		"
-					+"	A2 nvarchar(50),		"
-					+"	pages float(8),			"
-					+"	A11 nvarchar(25),		"
-					+"	charges float(8),		"
-					+"	line float(8),			"
-					+"  filename nvarchar(100)  "
-				+");";
-		String csgledEntryExistsQuery = "SELECT rollno, mo, charges FROM "+schema+".csgled WHERE rollno = ? AND mo = ?";
-		String csgledCreateEntryQuery = "INSERT INTO "+schema+".csgled (rollno, remarks, drcr, charges, mon, mo) values (?,?,?,?,?,?)";
-		String updateCsgledEntryQuery = "UPDATE "+schema+".csgled SET charges=? WHERE rollno=? AND mo=?";
-		// Month query must be inserted into a temporary table which will be finalized using frontend. Hence temp included in table name
-		String insertMonthEntry = "INSERT INTO "+schema+".TEMP"+monthMMM+yearYYYY+" (rollno,cdate,A2,pages,A11,charges,line,filename) VALUES (?,?,?,?,?,?,?,?)";
-		String pageCostQuery = "SELECT costperpage, costFirstpage, additionalCost FROM "+schema+".costs WHERE printername = ?";
-		
-		
-		float charges = 0.0f;
-		
+		// Events at or before the watermark were loaded by an earlier run
+		Watermark mark = getWatermark();
+		if(mark != null && !mark.accept(details.printTime, details.bannerID))
+			return;
+		// Events loaded by any earlier run, such as one over overlapping dates, are in the dedup index
+		int shard = isSharded() ? ShardedWriter.shardOf(details.regNo, writers) : 0;
+		DedupIndex.Batch loaded = getDedup(shard);
 		try{
-			
-			queryStatement = connection.prepareStatement(pageCostQuery);
-			queryStatement.setString(1, details.printerName);
-			queryResult = queryStatement.executeQuery();
-			if(queryResult.next()){
-				float costPerPage = queryResult.getFloat("costperpage");
-				float CostFirstPage = queryResult.getFloat("costFirstpage");
-				float additionalCost = queryResult.getFloat("additionalCost");
-				charges = CostFirstPage + additionalCost + (costPerPage * details.pages);
-			}
-			queryStatement.close();
-			queryResult.close();
-			
-			// CHECK IF MONTH TABLE EXISTS
-			if(!currentMonth.equals(monthMMM+yearYYYY)){
-				queryStatement = connection.prepareStatement(monthTableExistsQuery);
-				queryStatement.setString(1, "TEMP"+monthMMM+yearYYYY);
-				queryResult = queryStatement.executeQuery();
-				if(!queryResult.next()){
-					queryStatement = connection.prepareStatement(createMonthTableQuery);				
-					queryStatement.executeUpdate();
-				}else{
-					
-				}
-				queryResult.close();
-				queryStatement.close();
-				currentMonth = monthMMM + yearYYYY;
-			}
-			
-			queryStatement = connection.prepareStatement(insertMonthEntry);			
-			queryStatement.setString(1, details.regNo);
-			queryStatement.setString(2, details.printTime.toString().substring(0,10));
-			queryStatement.setString(3, details.printTime.toString().substring(11));
-			queryStatement.setFloat(4,details.pages);
-			if(details.printerName.length() >24 )
-				details.printerName = details.printerName.substring(0,24);
-			queryStatement.setString(5, details.printerName);
-			queryStatement.setFloat(6, charges);
-			queryStatement.setFloat(7, details.bannerID);
-			queryStatement.setString(8, details.documentName);
-			queryStatement.executeUpdate();
-			queryStatement.close();
-			
-			
-			// CHECK IF PERSON HAS ALREADY TAKEN ANY PRINTOUT IN THAT MONTH
-			queryStatement = connection.prepareStatement(csgledEntryExistsQuery);
-			queryStatement.setString(1, details.regNo);
-			queryStatement.setString(2, monthMMM+yearYYYY);
-			queryResult = queryStatement.executeQuery();
-			
-			if(!queryResult.next()){
-				queryStatement = connection.prepareStatement(csgledCreateEntryQuery);
-				queryStatement.setString(1, details.regNo);
-				queryStatement.setString(2, "Printout charges for "+monthMMM+" "+yearYYYY);
-				queryStatement.setString(3, "dr");
-				queryStatement.setFloat(4, charges);
-				@SuppressWarnings("deprecation")
-				int mon = Integer.parseInt(yearYYYY) * 100 + dt.getMonth();
-				queryStatement.setFloat(5, mon);
-				queryStatement.setString(6, monthMMM+yearYYYY);				
-				queryStatement.executeUpdate();
-			}else{
-				float existingCharges = queryResult.getFloat("charges");
-				charges += existingCharges;
-				queryStatement = connection.prepareStatement(updateCsgledEntryQuery);
-				queryStatement.setFloat(1, charges);
-				queryStatement.setString(2, details.regNo);
-				queryStatement.setString(3, monthMMM+yearYYYY);
-				queryStatement.executeUpdate();
+			if(loaded != null && !loaded.add(details)){
+				IngestMetrics.get().duplicatesSkipped.incrementAndGet();
+				return;
 			}
-			queryStatement.close();
-			queryResult.close();
-			/*
-			System.out.println("Timestamp: "+details.printTime.toString());		
-			System.out.println("Documet name: "+details.documentName+"\nRegno: "+details.regNo);
-			System.out.println("Pages: "+details.pages+ "\nPrinter Name: "+details.printerName);
-			*/
-			
+		} catch (IOException e) {
+			slogger.fatal("Cannot read dedup index. "
+					+e.getMessage());
+			transactionFailed = true;
+			return;
+		}
+		try{
+			if(isSharded())
+				getShardedWriter().write(details);
+			else
+				getWriter().write(details);
 		} catch (Exception e) {
+			// Rows the database rejects are quarantined by the writer, so this is the connection or the disk failing
 			slogger.fatal("Problem with loading data into database."
 					+e.getMessage());
 			slogger.info("Values of incorrect data: "+details.regNo+" "+details.printerName+" "+details.bannerID+" "+details.documentName
 					+" "+details.printTime);
-			//e.printStackTrace();
-			//TODO: Ask sir on what policy must be used for exit
-			System.exit(1);
 			transactionFailed = true;
 		}
 	}
 	
+	/** Loads the exports written to the log location as they appear, until the process is stopped */
+	static void watch(){
+		final IngestDaemon daemon = new IngestDaemon(new File(csvFileLocation), daemonBatchMillis, daemonBatchEvents);
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+			public void run(){
+				try {
+					daemon.stop();
+				} catch (InterruptedException e) {
+					slogger.warn("Stopped before the last events were committed.");
+				}
+			}
+		});
+		try {
+			daemon.run();
+		} catch (IOException e) {
+			slogger.fatal("Cannot watch "+csvFileLocation+". "
+					+e.getMessage());
+		} catch (InterruptedException e) {
+			slogger.fatal("Interrupted while watching "+csvFileLocation);
+		}
+	}
+	
 	public static void main(String[] args){
+		/** Keeps loading the exports written to the log location. */
+		if(args.length == 1 && args[0].equals("watch")){
+			watch();
+			return;
+		}
+		
 		CreatePrinterLogCSV pLog = new CreatePrinterLogCSV();
 		
+		/** Loads a quarantine file once its events have been fixed. */
+		if(args.length == 2 && args[0].equals("replay")){
+			pLog.replayQuarantine(new File(args[1]));
+			return;
+		}
+		
+		/** Loads the exports of several print servers, given as server=file or file, MachineName wins over the server given. */
+		if(args.length > 1 && args[0].equals("merge")){
+			List<MultiServerIngest.Export> exports = new ArrayList<MultiServerIngest.Export>();
+			for(int i = 1; i < args.length; i++)
+				exports.add(MultiServerIngest.Export.parse(args[i]));
+			pLog.loadExports(exports);
+			pLog.cleanUp();
+			return;
+		}
+		
+		/** Loads a spool file, such as an archived export. */
+		if(args.length == 2 && args[0].equals("spool")){
+			pLog.loadSpool(new File(args[1]));
+			pLog.cleanUp();
+			return;
+		}
+		
 		Calendar cal = GregorianCalendar.getInstance();
 		cal.setTime(new Date());
 		cal.add(Calendar.DATE, -2);
@@ -547,6 +1154,9 @@ public class CreatePrinterLogCSV {
 		/** Creates log file for printouts taken yesterday. */
 		//pLog.createLogFileYesterday();
 		
+		/** Creates log file for printouts taken since the last event loaded. */
+		//pLog.createLogFileSinceLastRun();
+		
 		/** Use the sample file given for parsing. */
 		pLog.ParseCSVAndLoadToDB("9Aug2012.csv");
 		pLog.cleanUp();
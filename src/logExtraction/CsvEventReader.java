@@ -0,0 +1,312 @@
+/*
+ * Streaming reader for the CSV files produced by Get-WinEvent | ConvertTo-csv.
+ * The file is memory mapped a window at a time and parsed one record at a time,
+ * so memory use does not depend on the size of the export.
+ * The export can also be read as it is produced, from the output of the extracting process.
+ */
+
+package logExtraction;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** The CsvEventReader class */
+public class CsvEventReader implements Closeable {
+
+	/** Size of the part of the file that is mapped into memory at any time */
+	static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	/** Encodings that Out-file and ConvertTo-csv are known to produce */
+	private static final int UTF8 = 0;
+	private static final int UTF16LE = 1;
+	private static final int UTF16BE = 2;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long size;
+	private int encoding = UTF8;
+
+	/** Used instead of the mapped file when reading from a stream */
+	private final Reader reader;
+
+	/** Currently mapped window of the file and the file offset it starts at */
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+
+	/** Low surrogate still to be returned after a 4 byte UTF-8 sequence */
+	private int pendingChar = -1;
+
+	/** slotOfColumn[column] gives the index into fields, or -1 if the column is not required */
+	private final int[] slotOfColumn;
+
+	/** One reusable buffer per requested column */
+	private final StringBuilder[] fields;
+
+	/** The first line of the export is the #TYPE line and the next one the column headers */
+	private boolean headerSkipped = false;
+
+	/** Number of data records returned so far */
+	private long rows = 0;
+
+	/** Set once next() has found the end of the export */
+	private boolean finished = false;
+
+	/** First character of the current record, used to recognise the #TYPE line */
+	private int firstChar;
+
+	/**
+	 * Opens the file for reading.
+	 * @param csvFile the exported CSV file
+	 * @param columns the column numbers to be extracted, get(i) returns the value of columns[i]
+	 */
+	public CsvEventReader(File csvFile, int... columns) throws IOException {
+		this(null, csvFile, columns);
+	}
+
+	/**
+	 * Reads the export from a stream such as the output of the extracting process.
+	 * @param in the export, already decoded
+	 * @param columns the column numbers to be extracted, get(i) returns the value of columns[i]
+	 */
+	public CsvEventReader(Reader in, int... columns) throws IOException {
+		this(in instanceof BufferedReader ? in : new BufferedReader(in, 64 * 1024), null, columns);
+	}
+
+	private CsvEventReader(Reader in, File csvFile, int[] columns) throws IOException {
+		int maxColumn = 0;
+		for (int column : columns)
+			maxColumn = Math.max(maxColumn, column);
+		slotOfColumn = new int[maxColumn + 1];
+		for (int i = 0; i < slotOfColumn.length; i++)
+			slotOfColumn[i] = -1;
+		fields = new StringBuilder[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			slotOfColumn[columns[i]] = i;
+			fields[i] = new StringBuilder(256);
+		}
+		reader = in;
+		if (in != null) {
+			file = null;
+			channel = null;
+			size = 0;
+			return;
+		}
+		file = new RandomAccessFile(csvFile, "r");
+		channel = file.getChannel();
+		size = channel.size();
+		detectEncoding();
+	}
+
+	/** Checks the byte order mark written by Out-file */
+	private void detectEncoding() throws IOException {
+		int b0 = readByte();
+		int b1 = readByte();
+		if (b0 == 0xFF && b1 == 0xFE) {
+			encoding = UTF16LE;
+			return;
+		}
+		if (b0 == 0xFE && b1 == 0xFF) {
+			encoding = UTF16BE;
+			return;
+		}
+		if (b0 == 0xEF && b1 == 0xBB && readByte() == 0xBF)
+			return;
+		position = 0;
+	}
+
+	/** Returns the next byte of the file or -1 at end of file */
+	private int readByte() throws IOException {
+		if (position >= size)
+			return -1;
+		if (window == null || position >= windowStart + window.limit()) {
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+					Math.min(WINDOW_SIZE, size - windowStart));
+		}
+		return window.get((int) (position++ - windowStart)) & 0xFF;
+	}
+
+	/** Returns the next decoded character of the file or -1 at end of file */
+	private int readChar() throws IOException {
+		if (reader != null) {
+			int c = reader.read();
+			// Byte order mark at the start of the stream
+			if (c == 0xFEFF && rows == 0 && !headerSkipped)
+				c = reader.read();
+			return c;
+		}
+		if (pendingChar >= 0) {
+			int c = pendingChar;
+			pendingChar = -1;
+			return c;
+		}
+		int b = readByte();
+		if (b < 0)
+			return -1;
+		switch (encoding) {
+		case UTF16LE: {
+			int hi = readByte();
+			return hi < 0 ? -1 : (hi << 8) | b;
+		}
+		case UTF16BE: {
+			int lo = readByte();
+			return lo < 0 ? -1 : (b << 8) | lo;
+		}
+		default:
+			if (b < 0x80)
+				return b;
+			int extra;
+			int codePoint;
+			if (b >= 0xF0) {
+				extra = 3;
+				codePoint = b & 0x07;
+			} else if (b >= 0xE0) {
+				extra = 2;
+				codePoint = b & 0x0F;
+			} else if (b >= 0xC0) {
+				extra = 1;
+				codePoint = b & 0x1F;
+			} else {
+				return 0xFFFD;
+			}
+			for (int i = 0; i < extra; i++) {
+				int next = readByte();
+				if (next < 0)
+					return -1;
+				codePoint = (codePoint << 6) | (next & 0x3F);
+			}
+			if (codePoint >= 0x10000) {
+				pendingChar = Character.lowSurrogate(codePoint);
+				return Character.highSurrogate(codePoint);
+			}
+			return codePoint;
+		}
+	}
+
+	/**
+	 * Reads one record, storing the required columns.
+	 * @return number of characters in the record, or -1 at end of file
+	 */
+	private int readRecord() throws IOException {
+		for (StringBuilder field : fields)
+			field.setLength(0);
+		int column = 0;
+		int chars = 0;
+		boolean quoted = false;
+		StringBuilder field = slotFor(column);
+		int c;
+		firstChar = -1;
+		while ((c = readChar()) >= 0) {
+			if (firstChar < 0 && c != '\r' && c != '\n')
+				firstChar = c;
+			if (quoted) {
+				if (c == '"') {
+					c = readChar();
+					if (c != '"') {
+						quoted = false;
+						if (c < 0)
+							break;
+					}
+				}
+				if (quoted) {
+					if (field != null)
+						field.append((char) c);
+					chars++;
+					continue;
+				}
+			}
+			if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				column++;
+				field = slotFor(column);
+			} else if (c == '\n') {
+				return chars;
+			} else if (c == '\r') {
+				continue;
+			} else if (field != null) {
+				field.append((char) c);
+			}
+			chars++;
+		}
+		return chars == 0 && column == 0 ? -1 : chars;
+	}
+
+	private StringBuilder slotFor(int column) {
+		if (column >= slotOfColumn.length || slotOfColumn[column] < 0)
+			return null;
+		return fields[slotOfColumn[column]];
+	}
+
+	/**
+	 * Moves to the next data record. Blank lines, the #TYPE line and the column header line are skipped.
+	 * @return false when there are no more records
+	 */
+	public boolean next() throws IOException {
+		int chars;
+		while ((chars = readRecord()) >= 0) {
+			if (chars == 0)
+				continue;
+			if (!headerSkipped) {
+				if (!isTypeLine())
+					headerSkipped = true;
+				continue;
+			}
+			rows++;
+			return true;
+		}
+		finished = true;
+		return false;
+	}
+
+	/** Whether the whole export has been read, false when reading stopped before its end */
+	boolean isFinished() {
+		return finished;
+	}
+
+	/** Whether the #TYPE line and the column headers have been read, or were said to be skipped */
+	boolean isHeaderSkipped() {
+		return headerSkipped;
+	}
+
+	/** For a part of an export that starts after the header, such as what was added to it since it was last read */
+	void setHeaderSkipped() {
+		headerSkipped = true;
+	}
+
+	private boolean isTypeLine() {
+		return firstChar == '#';
+	}
+
+	/** Value of the i'th requested column of the current record */
+	public String get(int i) {
+		return fields[i].toString();
+	}
+
+	/** Value of the i'th requested column without copying it. Only valid until next() is called. */
+	public CharSequence field(int i) {
+		return fields[i];
+	}
+
+	/** Number of data records read so far */
+	public long getRows() {
+		return rows;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		if (reader != null) {
+			reader.close();
+			return;
+		}
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,448 @@
+/*
+ * Index of the print events already loaded, so that loading the same dates again does not
+ * insert the events or add their charges a second time.
+ *
+ * An event is identified by its print server, banner ID, print time and printer, which are reduced
+ * to a 64 bit fingerprint. The fingerprints of each month are kept sorted in a file of their own in
+ * the index directory, 8 bytes per event, and months older than the retention are deleted.
+ * A Bloom filter of all fingerprints is kept in memory, about 10 bits per event, so a new event is
+ * normally recognised without reading any file. Only events that the filter thinks were loaded are
+ * looked up in the month file, which is read once and kept while a few months are in use.
+ *
+ * The fingerprints of a run are added right after the database commit, each month file being written
+ * under a temporary name and renamed over the old one, so the index only ever holds events that were
+ * committed. If the process dies between the two, the events of that run are not in the index, the
+ * watermark still covers them. Runs of the same process add their events one at a time.
+ *
+ * The fingerprints of a run are kept in a plain long array for each month, in sorted runs that are
+ * merged as they grow, so an event of the run costs 8 bytes and a repeat is found by binary search.
+ */
+
+package logExtraction;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The DedupIndex class */
+public class DedupIndex {
+
+	static Logger slogger = Logger.getLogger(DedupIndex.class);
+
+	static final int DEFAULT_RETENTION_MONTHS = 13;
+
+	/** Month files kept in memory for lookups */
+	private static final int CACHED_MONTHS = 3;
+
+	private static final String PREFIX = "dedup-";
+	private static final String SUFFIX = ".idx";
+
+	/** Bits of the Bloom filter per event and the number of them set for each event */
+	private static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+	private static final int MIN_CAPACITY = 1 << 16;
+
+	private final File directory;
+	private final int retentionMonths;
+
+	private BloomFilter filter;
+	private long keys;
+
+	/** Sorted fingerprints of the months looked up recently, the eldest is dropped first */
+	private final Map<Integer, long[]> months = new LinkedHashMap<Integer, long[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, long[]> eldest) {
+			return size() > CACHED_MONTHS;
+		}
+	};
+
+	/**
+	 * Opens the index in the directory, creating it if required, and builds the Bloom filter from its files.
+	 * @param retentionMonths months of history kept, events older than that are forgotten
+	 */
+	public DedupIndex(File directory, int retentionMonths) throws IOException {
+		this.directory = directory;
+		this.retentionMonths = retentionMonths;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory "+directory);
+		deleteExpired();
+		rebuildFilter();
+		slogger.info("Dedup index "+directory+" holds "+keys+" events.");
+	}
+
+	/** Month of the event as yyyyMM, which is also the name of its file */
+	static int month(long printTime) {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.setTimeInMillis(printTime);
+		return cal.get(Calendar.YEAR) * 100 + cal.get(Calendar.MONTH) + 1;
+	}
+
+	/** Fingerprint of the print server, banner ID, print time and printer of an event */
+	static long fingerprint(PrintingDetails details) {
+		return fingerprint(details.server, details.printerName, details.bannerID, details.printTime.getTime());
+	}
+
+	/** Same as fingerprint(details) for an event of a buffer */
+	static long fingerprint(EventBuffer events, int row) {
+		return fingerprint(events.server(row), events.printerName(row), events.bannerID(row), events.time(row));
+	}
+
+	private static long fingerprint(String server, String printerName, int bannerID, long printTime) {
+		long h = 0xcbf29ce484222325L;
+		h = hash(h, server);
+		h = hash(h, printerName);
+		h = (h ^ bannerID) * 0x100000001b3L;
+		h = (h ^ printTime) * 0x100000001b3L;
+		// Mix the bits so that every bit of the fingerprint depends on every bit of the input
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long hash(long h, String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++)
+				h = (h ^ value.charAt(i)) * 0x100000001b3L;
+		}
+		// Separates the fields so that moving characters from one to the other changes the fingerprint
+		return (h ^ 0xff) * 0x100000001b3L;
+	}
+
+	private File file(int month) {
+		return new File(directory, PREFIX+month+SUFFIX);
+	}
+
+	private File[] files() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return new File[0];
+		return files;
+	}
+
+	private static int monthOf(File file) {
+		String name = file.getName();
+		if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void deleteExpired() {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.add(Calendar.MONTH, -retentionMonths);
+		int oldest = cal.get(Calendar.YEAR) * 100 + cal.get(Calendar.MONTH) + 1;
+		for (File file : files()) {
+			int month = monthOf(file);
+			if (month > 0 && month < oldest) {
+				if (file.delete())
+					slogger.info("Deleted expired dedup index "+file.getName());
+				else
+					slogger.warn("Cannot delete expired dedup index "+file.getName());
+			}
+		}
+	}
+
+	private void rebuildFilter() throws IOException {
+		long count = 0;
+		File[] files = files();
+		for (File file : files) {
+			if (monthOf(file) > 0)
+				count += file.length() / 8;
+		}
+		BloomFilter rebuilt = new BloomFilter(Math.max(MIN_CAPACITY, 2 * count));
+		for (File file : files) {
+			if (monthOf(file) > 0) {
+				for (long key : read(file))
+					rebuilt.add(key);
+			}
+		}
+		filter = rebuilt;
+		keys = count;
+	}
+
+	private static long[] read(File file) throws IOException {
+		if (!file.exists())
+			return new long[0];
+		long[] values = new long[(int) (file.length() / 8)];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			for (int i = 0; i < values.length; i++)
+				values[i] = in.readLong();
+		} finally {
+			in.close();
+		}
+		return values;
+	}
+
+	private static void write(File file, long[] values, int count) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			for (int i = 0; i < count; i++)
+				out.writeLong(values[i]);
+		} finally {
+			out.close();
+		}
+	}
+
+	private long[] monthKeys(int month) throws IOException {
+		long[] keys = months.get(month);
+		if (keys == null) {
+			keys = read(file(month));
+			months.put(month, keys);
+		}
+		return keys;
+	}
+
+	/** Whether the event is in the index */
+	public synchronized boolean contains(int month, long key) throws IOException {
+		if (!filter.mightContain(key))
+			return false;
+		return Arrays.binarySearch(monthKeys(month), key) >= 0;
+	}
+
+	/** Starts collecting the events of a run */
+	public Batch begin() {
+		return new Batch();
+	}
+
+	/** Merges the fingerprints into the month file, writing it under a temporary name */
+	private File merge(int month, long[] added, int addedCount) throws IOException {
+		long[] existing = monthKeys(month);
+		long[] merged = new long[existing.length + addedCount];
+		System.arraycopy(existing, 0, merged, 0, existing.length);
+		System.arraycopy(added, 0, merged, existing.length, addedCount);
+		int count = merged.length;
+		Arrays.sort(merged, 0, count);
+		// Another run may have added the same events in the meantime
+		int unique = 0;
+		for (int i = 0; i < count; i++) {
+			if (unique == 0 || merged[i] != merged[unique - 1])
+				merged[unique++] = merged[i];
+		}
+		File temporary = new File(directory, PREFIX+month+SUFFIX+".tmp");
+		write(temporary, merged, unique);
+		return temporary;
+	}
+
+	/** Writes the month files with the events added and adds the events to the filter */
+	private synchronized void publish(Map<Integer, MonthKeys> added) throws IOException {
+		for (Map.Entry<Integer, MonthKeys> entry : added.entrySet()) {
+			MonthKeys keysOfMonth = entry.getValue();
+			if (keysOfMonth.size == 0)
+				continue;
+			File merged = merge(entry.getKey(), keysOfMonth.keys, keysOfMonth.size);
+			Files.move(merged.toPath(), file(entry.getKey()).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			months.remove(entry.getKey());
+		}
+		for (MonthKeys keysOfMonth : added.values()) {
+			for (int i = 0; i < keysOfMonth.size; i++)
+				filter.add(keysOfMonth.keys[i]);
+			keys += keysOfMonth.size;
+		}
+		// A full filter answers yes too often, so it is made bigger
+		if (keys > filter.capacity)
+			rebuildFilter();
+	}
+
+	/** Events of one run, added to the index only once they are committed to the database */
+	public class Batch {
+
+		private final Map<Integer, MonthKeys> added = new HashMap<Integer, MonthKeys>();
+		private long duplicates = 0;
+
+		/**
+		 * Records an event of this run.
+		 * @return false if it is already in the index or was seen earlier in this run, so it must be skipped
+		 */
+		public boolean add(PrintingDetails details) throws IOException {
+			return add(month(details.printTime.getTime()), fingerprint(details));
+		}
+
+		/** Same as add(details) for an event of a buffer */
+		public boolean add(EventBuffer events, int row) throws IOException {
+			return add(month(events.time(row)), fingerprint(events, row));
+		}
+
+		private boolean add(int month, long key) throws IOException {
+			MonthKeys keysOfMonth = added.get(month);
+			if (keysOfMonth == null) {
+				keysOfMonth = new MonthKeys();
+				added.put(month, keysOfMonth);
+			}
+			if (contains(month, key) || keysOfMonth.contains(key)) {
+				duplicates++;
+				return false;
+			}
+			keysOfMonth.add(key);
+			return true;
+		}
+
+		/** Takes back an event of this run that was not loaded after all */
+		public void remove(PrintingDetails details) {
+			MonthKeys keysOfMonth = added.get(month(details.printTime.getTime()));
+			if (keysOfMonth != null)
+				keysOfMonth.remove(fingerprint(details));
+		}
+
+		/** Number of events skipped as already loaded */
+		public long getDuplicates() {
+			return duplicates;
+		}
+
+		/** Adds the events of the run to the index, to be done once the database commit succeeded */
+		public void commit() throws IOException {
+			publish(added);
+			added.clear();
+		}
+
+		/** Forgets the events of the run, for when the database transaction was rolled back */
+		public void abort() {
+			added.clear();
+		}
+	}
+
+	/**
+	 * Fingerprints of one month added by a run, in a growable array. New keys go to an unsorted tail of
+	 * at most TAIL keys, which is then sorted into a run of its own, and the last two runs are merged while
+	 * the one before is at most four times as long as the last, so there are only a few runs to search.
+	 */
+	static class MonthKeys {
+
+		private static final int TAIL = 64;
+
+		long[] keys = new long[TAIL];
+		int size = 0;
+
+		/** Start of each sorted run, the last one ends at sorted and the unsorted tail follows */
+		private int[] runs = new int[8];
+		private int runCount = 0;
+		private int sorted = 0;
+
+		boolean contains(long key) {
+			for (int i = sorted; i < size; i++) {
+				if (keys[i] == key)
+					return true;
+			}
+			for (int r = 0; r < runCount; r++) {
+				if (Arrays.binarySearch(keys, runs[r], end(r), key) >= 0)
+					return true;
+			}
+			return false;
+		}
+
+		/** Adds a key that is not there yet */
+		void add(long key) {
+			if (size == keys.length)
+				keys = Arrays.copyOf(keys, 2 * size);
+			keys[size++] = key;
+			if (size - sorted == TAIL) {
+				Arrays.sort(keys, sorted, size);
+				if (runCount == runs.length)
+					runs = Arrays.copyOf(runs, 2 * runCount);
+				runs[runCount++] = sorted;
+				sorted = size;
+				while (runCount > 1 && end(runCount - 2) - runs[runCount - 2] <= 4 * (sorted - runs[runCount - 1]))
+					mergeLastRuns();
+			}
+		}
+
+		void remove(long key) {
+			for (int i = sorted; i < size; i++) {
+				if (keys[i] == key) {
+					keys[i] = keys[--size];
+					return;
+				}
+			}
+			for (int r = 0; r < runCount; r++) {
+				int i = Arrays.binarySearch(keys, runs[r], end(r), key);
+				if (i >= 0) {
+					System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+					size--;
+					sorted--;
+					for (int next = r + 1; next < runCount; next++)
+						runs[next]--;
+					return;
+				}
+			}
+		}
+
+		private int end(int run) {
+			return run + 1 < runCount ? runs[run + 1] : sorted;
+		}
+
+		/** Merges the last run into the one before, the keys of the first are copied out so the merge can be done in place */
+		private void mergeLastRuns() {
+			int start = runs[runCount - 2];
+			int middle = runs[runCount - 1];
+			long[] first = Arrays.copyOfRange(keys, start, middle);
+			int i = 0;
+			int j = middle;
+			int k = start;
+			while (i < first.length && j < sorted)
+				keys[k++] = first[i] <= keys[j] ? first[i++] : keys[j++];
+			while (i < first.length)
+				keys[k++] = first[i++];
+			runCount--;
+		}
+	}
+
+	/** Bloom filter of fingerprints, which are already well mixed so two halves give all the hashes */
+	private static class BloomFilter {
+
+		final long capacity;
+		private final long[] bits;
+		private final long size;
+
+		BloomFilter(long capacity) {
+			this.capacity = capacity;
+			long words = (capacity * BITS_PER_KEY + 63) / 64;
+			bits = new long[(int) Math.min(words, Integer.MAX_VALUE - 8)];
+			size = bits.length * 64L;
+		}
+
+		void add(long key) {
+			long h1 = key;
+			long h2 = (key >>> 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+				bits[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(long key) {
+			long h1 = key;
+			long h2 = (key >>> 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+				if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+					return false;
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * Parses the message of event 307 (document printed) in a single pass over its characters.
+ *
+ * Example format of content
+ * Document 1790, Microsoft Word - VIPUL_KUMAR_ECE owned by 108109109 on \\10.1.34.21 was printed on A4-4515x through port 10.0.0.43_2.  Size in bytes: 201625. Pages printed: 3. No user action is required.
+ *
+ * The message is copied once into a reusable buffer, dropping non printable characters and
+ * remembering where the last "owned by ", "was printed on " and "Pages printed: " start, so that
+ * the fields can be cut out without further copies. Printer names and roll numbers repeat a lot
+ * and are shared between events instead of being allocated for each one.
+ */
+
+package logExtraction;
+
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The Event307Parser class. An instance must only be used by one thread. */
+public class Event307Parser {
+
+	private static final char[] DOCUMENT = "Document ".toCharArray();
+	private static final char[] OWNED_BY = "owned by ".toCharArray();
+	private static final char[] WAS_PRINTED_ON = "was printed on ".toCharArray();
+	private static final char[] PAGES_PRINTED = "Pages printed: ".toCharArray();
+	private static final char[] THROUGH_PORT = " through port".toCharArray();
+
+	/** Message with non printable characters removed and trimmed */
+	private char[] buffer = new char[512];
+	private int length;
+
+	/** Position of the first comma and of the last occurrence of each phrase after it, -1 if not found */
+	private int comma;
+	private int ownedBy;
+	private int wasPrintedOn;
+	private int pagesPrinted;
+
+	/** Occurrence before the last one, used if the last one is cut by trimming */
+	private int previousOwnedBy;
+	private int previousWasPrintedOn;
+	private int previousPagesPrinted;
+
+	/** Shared strings for printer names and roll numbers */
+	private final String[] printerNames = new String[1024];
+	private final String[] regNos = new String[8192];
+
+	/** Print server of the last event, the export of one server only ever has one */
+	private String server = "";
+
+	/** Reused to turn the TimeCreated column into a time */
+	private final Calendar calendar = new GregorianCalendar();
+	private final int[] numbers = new int[6];
+
+	/**
+	 * Copies the message into the buffer, dropping characters below space and trimming it.
+	 * @return the length of what is left, messages of 2 characters or less contain nothing to parse
+	 */
+	public int scan(CharSequence content) {
+		int size = content.length();
+		if (buffer.length < size)
+			buffer = new char[Math.max(size, buffer.length * 2)];
+		char[] buf = buffer;
+		int len = 0;
+		comma = -1;
+		ownedBy = -1;
+		wasPrintedOn = -1;
+		pagesPrinted = -1;
+		previousOwnedBy = -1;
+		previousWasPrintedOn = -1;
+		previousPagesPrinted = -1;
+		for (int i = 0; i < size; i++) {
+			char ch = content.charAt(i);
+			if (ch < ' ' || (ch == ' ' && len == 0))
+				continue;
+			buf[len++] = ch;
+			if (ch == ',' && comma < 0) {
+				comma = len - 1;
+			} else if (ch == ' ' && comma >= 0) {
+				// All the phrases end with a space, so only look for them there
+				if (endsWith(buf, len, OWNED_BY, comma)) {
+					previousOwnedBy = ownedBy;
+					ownedBy = len - OWNED_BY.length;
+				} else if (endsWith(buf, len, WAS_PRINTED_ON, comma)) {
+					previousWasPrintedOn = wasPrintedOn;
+					wasPrintedOn = len - WAS_PRINTED_ON.length;
+				} else if (endsWith(buf, len, PAGES_PRINTED, comma)) {
+					previousPagesPrinted = pagesPrinted;
+					pagesPrinted = len - PAGES_PRINTED.length;
+				}
+			}
+		}
+		while (len > 0 && buf[len - 1] == ' ')
+			len--;
+		// A phrase whose trailing space was trimmed is no longer in the message
+		if (ownedBy + OWNED_BY.length > len)
+			ownedBy = previousOwnedBy;
+		if (wasPrintedOn + WAS_PRINTED_ON.length > len)
+			wasPrintedOn = previousWasPrintedOn;
+		if (pagesPrinted + PAGES_PRINTED.length > len)
+			pagesPrinted = previousPagesPrinted;
+		length = len;
+		return len;
+	}
+
+	/** Whether buf[0..len) ends with the phrase, starting after position from */
+	private static boolean endsWith(char[] buf, int len, char[] phrase, int from) {
+		int start = len - phrase.length;
+		if (start <= from)
+			return false;
+		for (int i = phrase.length - 2; i >= 0; i--)
+			if (buf[start + i] != phrase[i])
+				return false;
+		return true;
+	}
+
+	/** The scanned message, used when reporting errors */
+	public String content() {
+		return new String(buffer, 0, length);
+	}
+
+	/**
+	 * Extracts the details from the message given to the last call of scan().
+	 * The document name is everything between the first comma and the last "owned by ",
+	 * so it may itself contain " owned by " or " on ".
+	 * @param date the TimeCreated column
+	 * @throws IllegalArgumentException if the message is not in the expected format
+	 */
+	public PrintingDetails parse(CharSequence date) {
+		return parse(date, "");
+	}
+
+	/**
+	 * Same as parse(date), also keeping the print server the event was logged on.
+	 * @param server the MachineName column
+	 */
+	public PrintingDetails parse(CharSequence date, CharSequence server) {
+		char[] buf = buffer;
+		if (comma < DOCUMENT.length)
+			throw new IllegalArgumentException("No document number");
+		if (ownedBy < comma + 2)
+			throw new IllegalArgumentException("No owner");
+		if (wasPrintedOn < 0)
+			throw new IllegalArgumentException("No printer");
+		if (pagesPrinted < 0)
+			throw new IllegalArgumentException("No pages printed");
+
+		PrintingDetails details = new PrintingDetails();
+		details.bannerID = parseInt(buf, DOCUMENT.length, comma);
+
+		// Owner ends one character before the first "on" that follows it
+		int regNoStart = ownedBy + OWNED_BY.length;
+		int on = indexOf(buf, regNoStart, length, 'o', 'n');
+		if (on < regNoStart + 1)
+			throw new IllegalArgumentException("No end of owner");
+		details.regNo = shared(regNos, buf, regNoStart, on - 1);
+		details.documentName = new String(buf, comma + 1, ownedBy - 1 - (comma + 1));
+
+		int pagesStart = pagesPrinted + PAGES_PRINTED.length;
+		int dot = indexOf(buf, pagesStart, length, '.');
+		if (dot < 0)
+			throw new IllegalArgumentException("No end of pages printed");
+		details.pages = parseInt(buf, pagesStart, dot);
+
+		int printerStart = wasPrintedOn + WAS_PRINTED_ON.length;
+		int port = indexOf(buf, printerStart, length, THROUGH_PORT);
+		if (port < 0)
+			throw new IllegalArgumentException("No end of printer name");
+		details.printerName = shared(printerNames, buf, printerStart, port);
+
+		details.printTime = new Timestamp(parseTime(date));
+		if (!this.server.contentEquals(server))
+			this.server = server.toString();
+		details.server = this.server;
+		return details;
+	}
+
+	private static int indexOf(char[] buf, int from, int to, char c) {
+		for (int i = from; i < to; i++)
+			if (buf[i] == c)
+				return i;
+		return -1;
+	}
+
+	private static int indexOf(char[] buf, int from, int to, char c1, char c2) {
+		for (int i = from; i < to - 1; i++)
+			if (buf[i] == c1 && buf[i + 1] == c2)
+				return i;
+		return -1;
+	}
+
+	private static int indexOf(char[] buf, int from, int to, char[] phrase) {
+		outer:
+		for (int i = from; i <= to - phrase.length; i++) {
+			for (int j = 0; j < phrase.length; j++)
+				if (buf[i + j] != phrase[j])
+					continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	/** Same rules as Integer.parseInt on buf[start..end) */
+	private static int parseInt(char[] buf, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+			negative = buf[i] == '-';
+			i++;
+		}
+		if (i == end)
+			throw new IllegalArgumentException("Not a number: " + new String(buf, start, end - start));
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = Character.digit(buf[i], 10);
+			if (digit < 0 || (value = value * 10 + digit) > Integer.MAX_VALUE + 1L)
+				throw new IllegalArgumentException("Not a number: " + new String(buf, start, end - start));
+		}
+		if (!negative && value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Not a number: " + new String(buf, start, end - start));
+		return (int) (negative ? -value : value);
+	}
+
+	/** Returns the string for buf[start..end), reusing the one created for an earlier event if it is the same */
+	private static String shared(String[] table, char[] buf, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + buf[i];
+		int slot = (hash ^ (hash >>> 16)) & (table.length - 1);
+		String s = table[slot];
+		if (s != null && s.length() == end - start) {
+			int i = 0;
+			while (i < s.length() && s.charAt(i) == buf[start + i])
+				i++;
+			if (i == s.length())
+				return s;
+		}
+		s = new String(buf, start, end - start);
+		table[slot] = s;
+		return s;
+	}
+
+	/**
+	 * Time of the event from the TimeCreated column, such as 8/24/2012 11:02:36 AM or 2012-08-24 11:02:36.
+	 * These are decoded directly; anything else is left to Date.parse which was used for all of them earlier.
+	 */
+	long parseTime(CharSequence date) {
+		int[] numbers = this.numbers;
+		int count = 0;
+		int value = -1;
+		int separators = 0;
+		int marker = 0;
+		boolean ok = true;
+		int size = date.length();
+		for (int i = 0; i <= size && ok; i++) {
+			char ch = i < size ? date.charAt(i) : ' ';
+			if (ch < ' ')
+				continue;
+			if (ch >= '0' && ch <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (ch - '0');
+				if (value > 99999)
+					ok = false;
+				continue;
+			}
+			if (value >= 0) {
+				if (count == 6)
+					ok = false;
+				else
+					numbers[count++] = value;
+				value = -1;
+			}
+			if (ch == '/' || ch == '-') {
+				ok = count >= 1 && count <= 2 && ++separators == count;
+			} else if (ch == ':') {
+				ok = count >= 4 && count <= 5;
+			} else if (ch == 'A' || ch == 'P') {
+				ok = count == 6 && marker == 0 && i + 1 < size && date.charAt(i + 1) == 'M';
+				marker = ch;
+				i++;
+			} else if (ch != ' ') {
+				ok = false;
+			}
+		}
+		if (ok && count == 6 && separators == 2)
+			return fastTime(numbers, marker, date);
+		return fallbackTime(date);
+	}
+
+	private long fastTime(int[] n, int marker, CharSequence date) {
+		int year, month, day;
+		if (n[0] >= 100 && n[1] < 70 && n[2] < 70) {
+			year = n[0];
+			month = n[1];
+			day = n[2];
+		} else if (n[2] >= 100 && n[0] < 70 && n[1] < 70) {
+			month = n[0];
+			day = n[1];
+			year = n[2];
+		} else {
+			return fallbackTime(date);
+		}
+		int hour = n[3];
+		if (marker != 0) {
+			if (hour < 1 || hour > 12)
+				return fallbackTime(date);
+			if (marker == 'A')
+				hour = hour == 12 ? 0 : hour;
+			else
+				hour = hour == 12 ? 12 : hour + 12;
+		}
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, n[4], n[5]);
+		return calendar.getTimeInMillis();
+	}
+
+	@SuppressWarnings("deprecation")
+	private static long fallbackTime(CharSequence date) {
+		StringBuilder stripped = new StringBuilder(date.length());
+		for (int i = 0; i < date.length(); i++) {
+			char ch = date.charAt(i);
+			if (ch >= ' ')
+				stripped.append(ch == '-' ? '/' : ch);
+		}
+		return new Date(stripped.toString()).getTime();
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Events kept in columns of primitive arrays instead of a PrintingDetails each, for when many events
+ * are held at once, such as the parsed exports of a merged run or the rows of a batch.
+ *
+ * Printers, roll numbers and servers are stored as their number in a StringDictionary, and the
+ * document names as UTF-8 bytes one after the other in a single array. An event takes the bytes of
+ * its document name and 36 bytes more, plus the room the arrays keep to grow, against about 140 bytes
+ * for a PrintingDetails with its Timestamp and Strings, and the buffer is a handful of arrays whatever
+ * the number of events, so the garbage collector has nothing more to trace when more events are buffered.
+ * The writer, the usage report and the dedup index read the events from the columns, a PrintingDetails
+ * is only made for an event that is quarantined.
+ */
+
+package logExtraction;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The EventBuffer class. An instance must only be used by one thread at a time. */
+public class EventBuffer {
+
+	private final StringDictionary strings = new StringDictionary();
+
+	private int size = 0;
+	private long[] times;
+	private int[] bannerIDs;
+	private int[] pages;
+	private int[] printers;
+	private int[] regNos;
+	private int[] servers;
+	private float[] charges;
+
+	/** Document names as UTF-8, the name of event i runs from nameStarts[i] to nameStarts[i + 1] */
+	private byte[] names;
+	private int[] nameStarts;
+	private int namesLength = 0;
+
+	/** @param capacity events the buffer holds before it grows */
+	public EventBuffer(int capacity) {
+		capacity = Math.max(capacity, 16);
+		times = new long[capacity];
+		bannerIDs = new int[capacity];
+		pages = new int[capacity];
+		printers = new int[capacity];
+		regNos = new int[capacity];
+		servers = new int[capacity];
+		charges = new float[capacity];
+		nameStarts = new int[capacity + 1];
+		names = new byte[16 * capacity];
+	}
+
+	/** Copies the event into the buffer, nothing of the PrintingDetails is kept */
+	public void add(PrintingDetails details) {
+		add(details, (float) details.cost);
+	}
+
+	/** Copies the event with the charges worked out for it, leaving the details as they are */
+	public void add(PrintingDetails details, float charges) {
+		if (size == times.length)
+			grow();
+		times[size] = details.printTime.getTime();
+		bannerIDs[size] = details.bannerID;
+		pages[size] = details.pages;
+		printers[size] = strings.code(details.printerName);
+		regNos[size] = strings.code(details.regNo);
+		servers[size] = strings.code(details.server);
+		this.charges[size] = charges;
+		byte[] name = details.documentName.getBytes(StandardCharsets.UTF_8);
+		addName(name, 0, name.length);
+	}
+
+	/** Copies an event of another buffer with the charges worked out for it */
+	public void add(EventBuffer other, int row, float charges) {
+		if (size == times.length)
+			grow();
+		times[size] = other.times[row];
+		bannerIDs[size] = other.bannerIDs[row];
+		pages[size] = other.pages[row];
+		printers[size] = strings.code(other.printerName(row));
+		regNos[size] = strings.code(other.regNo(row));
+		servers[size] = strings.code(other.server(row));
+		this.charges[size] = charges;
+		addName(other.names, other.nameStarts[row], other.nameStarts[row + 1] - other.nameStarts[row]);
+	}
+
+	/** Appends the document name of the event being added, which ends it */
+	private void addName(byte[] name, int offset, int length) {
+		if (namesLength + length > names.length)
+			names = Arrays.copyOf(names, Math.max(2 * names.length, namesLength + length));
+		System.arraycopy(name, offset, names, namesLength, length);
+		namesLength += length;
+		nameStarts[++size] = namesLength;
+	}
+
+	private void grow() {
+		int capacity = 2 * times.length;
+		times = Arrays.copyOf(times, capacity);
+		bannerIDs = Arrays.copyOf(bannerIDs, capacity);
+		pages = Arrays.copyOf(pages, capacity);
+		printers = Arrays.copyOf(printers, capacity);
+		regNos = Arrays.copyOf(regNos, capacity);
+		servers = Arrays.copyOf(servers, capacity);
+		charges = Arrays.copyOf(charges, capacity);
+		nameStarts = Arrays.copyOf(nameStarts, capacity + 1);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Forgets the events, keeping the arrays for the next ones */
+	public void clear() {
+		size = 0;
+		namesLength = 0;
+	}
+
+	public long time(int row) {
+		return times[row];
+	}
+
+	public int bannerID(int row) {
+		return bannerIDs[row];
+	}
+
+	public int pages(int row) {
+		return pages[row];
+	}
+
+	public float charges(int row) {
+		return charges[row];
+	}
+
+	public String printerName(int row) {
+		return strings.get(printers[row]);
+	}
+
+	public String regNo(int row) {
+		return strings.get(regNos[row]);
+	}
+
+	public String server(int row) {
+		return strings.get(servers[row]);
+	}
+
+	public String documentName(int row) {
+		return new String(names, nameStarts[row], nameStarts[row + 1] - nameStarts[row], StandardCharsets.UTF_8);
+	}
+
+	/** A new PrintingDetails of the event, the printer, roll number and server are shared with the buffer */
+	public PrintingDetails get(int row) {
+		PrintingDetails details = new PrintingDetails();
+		details.printTime = new Timestamp(times[row]);
+		details.bannerID = bannerIDs[row];
+		details.pages = pages[row];
+		details.printerName = printerName(row);
+		details.regNo = regNo(row);
+		details.server = server(row);
+		details.cost = charges[row];
+		details.documentName = documentName(row);
+		return details;
+	}
+
+	/** Orders events by time, events of the same time by server and banner ID */
+	public int compare(int a, int b) {
+		return compare(this, a, this, b);
+	}
+
+	/** Same as compare(a, b) for events of two buffers */
+	public static int compare(EventBuffer bufferA, int a, EventBuffer bufferB, int b) {
+		int c = Long.compare(bufferA.times[a], bufferB.times[b]);
+		if (c != 0)
+			return c;
+		if (bufferA != bufferB || bufferA.servers[a] != bufferB.servers[b]) {
+			String serverA = bufferA.server(a);
+			String serverB = bufferB.server(b);
+			c = serverA == null ? (serverB == null ? 0 : -1) : (serverB == null ? 1 : serverA.compareTo(serverB));
+			if (c != 0)
+				return c;
+		}
+		return Integer.compare(bufferA.bannerIDs[a], bufferB.bannerIDs[b]);
+	}
+
+	/**
+	 * The rows in time order. An export in order or in reverse order, as Get-WinEvent writes it,
+	 * is only walked through, anything else is merge sorted.
+	 */
+	public int[] timeOrder() {
+		int[] order = new int[size];
+		boolean ascending = true;
+		boolean descending = true;
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+			if (i > 0) {
+				int c = compare(i - 1, i);
+				ascending &= c <= 0;
+				descending &= c >= 0;
+			}
+		}
+		if (ascending)
+			return order;
+		if (descending) {
+			for (int i = 0; i < size; i++)
+				order[i] = size - 1 - i;
+			return order;
+		}
+		sort(order, order.clone(), 0, size);
+		return order;
+	}
+
+	/** Merge sorts order[from, to) using scratch, which holds the same rows */
+	private void sort(int[] order, int[] scratch, int from, int to) {
+		if (to - from <= 16) {
+			for (int i = from + 1; i < to; i++) {
+				int row = order[i];
+				int j = i;
+				for (; j > from && compare(order[j - 1], row) > 0; j--)
+					order[j] = order[j - 1];
+				order[j] = row;
+			}
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		// The halves are sorted in scratch and merged back into order
+		sort(scratch, order, from, middle);
+		sort(scratch, order, middle, to);
+		for (int i = from, a = from, b = middle; i < to; i++) {
+			if (b >= to || (a < middle && compare(scratch[a], scratch[b]) <= 0))
+				order[i] = scratch[a++];
+			else
+				order[i] = scratch[b++];
+		}
+	}
+
+	/** Bytes held by the arrays of the buffer and, as an estimate, by its dictionary */
+	public long memoryUsed() {
+		return 8L * times.length + 4L * (bannerIDs.length + pages.length + printers.length + regNos.length
+				+ servers.length + nameStarts.length) + 4L * charges.length + names.length + strings.memoryUsed();
+	}
+}
@@ -0,0 +1,26 @@
+/*
+ * Produces the export of event 307 (document printed) for a range of dates.
+ * The export is read while it is being produced, so extraction and parsing overlap.
+ */
+
+package logExtraction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Date;
+
+/** The EventSource interface */
+public interface EventSource extends Closeable {
+
+	/**
+	 * Starts the export of the events printed between the dates.
+	 * @return a reader over the message and TimeCreated columns of the export
+	 */
+	CsvEventReader open(Date startDate, Date endDate) throws IOException;
+
+	/**
+	 * Waits for the export to finish.
+	 * @throws IOException if the export failed or did not finish in time, in which case the events read may be incomplete
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,337 @@
+/*
+ * Compact file of events that were already parsed, so that an export can be archived and loaded
+ * again without keeping or parsing the CSV, which has every column of Get-WinEvent.
+ *
+ * The file starts with a magic number and the version, followed by blocks of up to BLOCK_EVENTS events.
+ * Each block has a header of its length, its number of events, the number of strings it adds to the
+ * dictionary and the CRC32 of what follows the header. The new strings come first, as an unsigned short
+ * length and the UTF-8 bytes. Each event is then the print time, banner ID, pages and the dictionary
+ * numbers of the printer, roll number and print server, all fixed width, followed by the document name
+ * prefixed by its length in bytes. Printers, roll numbers and servers repeat a lot, so each is stored
+ * once per file, in the block where it is first used, and the blocks must be read in order.
+ *
+ * The file is written under a temporary name and renamed when it is closed, so a file that exists is
+ * complete. It is read through memory mapped windows and every block is checked before it is used.
+ */
+
+package logExtraction;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Timestamp;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The EventSpool class */
+public class EventSpool {
+
+	static Logger slogger = Logger.getLogger(EventSpool.class);
+
+	private static final int MAGIC = 0x50535031;
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER = 8;
+
+	/** Length, events, new strings and CRC32 */
+	private static final int BLOCK_HEADER = 20;
+
+	/** Events in a block, each block is checked as a whole before its events are read */
+	static final int BLOCK_EVENTS = 4096;
+
+	/** Size of the part of the file mapped at a time */
+	private static final int WINDOW = 64 * 1024 * 1024;
+
+	private EventSpool() {
+	}
+
+	/**
+	 * Parses a CSV export into a spool file. Messages that cannot be parsed are not written.
+	 * @return the number of events written
+	 */
+	public static long convert(File csvFile, File spoolFile) throws IOException {
+		CsvEventReader csv = new CsvEventReader(csvFile, CreatePrinterLogCSV.MESSAGE_COLUMN,
+				CreatePrinterLogCSV.TIME_CREATED_COLUMN, CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		Writer out = new Writer(spoolFile);
+		Event307Parser parser = new Event307Parser();
+		long skipped = 0;
+		try {
+			while (csv.next()) {
+				if (parser.scan(csv.field(0)) <= 2)
+					continue;
+				try {
+					out.write(parser.parse(csv.field(1), csv.field(2)));
+				} catch (IllegalArgumentException e) {
+					skipped++;
+				}
+			}
+			out.close();
+		} catch (IOException e) {
+			out.abort();
+			throw e;
+		} finally {
+			csv.close();
+		}
+		if (skipped > 0)
+			slogger.warn("Skipped "+skipped+" messages of "+csvFile+" that could not be parsed.");
+		slogger.info("Converted "+out.getCount()+" events of "+csvFile+" ("+csvFile.length()+" bytes) to "
+				+spoolFile+" ("+spoolFile.length()+" bytes).");
+		return out.getCount();
+	}
+
+	/** Converts a CSV export, such as one kept in the log directory, into a spool file */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: EventSpool <export.csv> <events.spool>");
+			System.exit(2);
+		}
+		convert(new File(args[0]), new File(args[1]));
+	}
+
+	/** Writes events to a spool file, which only appears under its name once it is closed */
+	public static class Writer implements Closeable {
+
+		private final File file;
+		private final File temporary;
+		private final DataOutputStream out;
+		private final StringDictionary dictionary = new StringDictionary();
+
+		/** The block being filled, its new strings and its events are kept apart as the strings come first */
+		private final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+		private final ByteArrayOutputStream events = new ByteArrayOutputStream(64 * BLOCK_EVENTS);
+		private final DataOutputStream stringsOut = new DataOutputStream(strings);
+		private final DataOutputStream eventsOut = new DataOutputStream(events);
+		private int blockEvents = 0;
+		private int blockStrings = 0;
+		private long count = 0;
+		private final CRC32 crc = new CRC32();
+
+		public Writer(File file) throws IOException {
+			this.file = file;
+			this.temporary = new File(file.getPath()+".tmp");
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 256 * 1024));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+
+		public void write(PrintingDetails details) throws IOException {
+			eventsOut.writeLong(details.printTime.getTime());
+			eventsOut.writeInt(details.bannerID);
+			eventsOut.writeInt(details.pages);
+			eventsOut.writeInt(code(details.printerName));
+			eventsOut.writeInt(code(details.regNo));
+			eventsOut.writeInt(code(details.server));
+			if (details.documentName == null) {
+				eventsOut.writeInt(-1);
+			} else {
+				byte[] name = details.documentName.getBytes(StandardCharsets.UTF_8);
+				eventsOut.writeInt(name.length);
+				eventsOut.write(name);
+			}
+			count++;
+			if (++blockEvents == BLOCK_EVENTS)
+				writeBlock();
+		}
+
+		/** Same as write(details) for an event of a buffer */
+		public void write(EventBuffer events, int row) throws IOException {
+			eventsOut.writeLong(events.time(row));
+			eventsOut.writeInt(events.bannerID(row));
+			eventsOut.writeInt(events.pages(row));
+			eventsOut.writeInt(code(events.printerName(row)));
+			eventsOut.writeInt(code(events.regNo(row)));
+			eventsOut.writeInt(code(events.server(row)));
+			byte[] name = events.documentName(row).getBytes(StandardCharsets.UTF_8);
+			eventsOut.writeInt(name.length);
+			eventsOut.write(name);
+			count++;
+			if (++blockEvents == BLOCK_EVENTS)
+				writeBlock();
+		}
+
+		/** Number of the string, adding it to the strings of the block when it is new */
+		private int code(String value) throws IOException {
+			int known = dictionary.size();
+			int code = dictionary.code(value);
+			if (code == known) {
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				if (bytes.length > 0xffff)
+					throw new IOException("String too long for spool file: "+value.substring(0, 40)+"...");
+				stringsOut.writeShort(bytes.length);
+				stringsOut.write(bytes);
+				blockStrings++;
+			}
+			return code;
+		}
+
+		private void writeBlock() throws IOException {
+			if (blockEvents == 0)
+				return;
+			crc.reset();
+			crc.update(strings.toByteArray());
+			crc.update(events.toByteArray());
+			out.writeInt(strings.size() + events.size());
+			out.writeInt(blockEvents);
+			out.writeInt(blockStrings);
+			out.writeLong(crc.getValue());
+			strings.writeTo(out);
+			events.writeTo(out);
+			strings.reset();
+			events.reset();
+			blockEvents = 0;
+			blockStrings = 0;
+		}
+
+		/** Number of events written */
+		public long getCount() {
+			return count;
+		}
+
+		/** Writes the last block and gives the file its name */
+		public void close() throws IOException {
+			writeBlock();
+			out.close();
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		/** Drops the file, for when the events written must not be kept */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				slogger.warn("Cannot close spool file "+temporary+". "+e.getMessage());
+			}
+			if (!temporary.delete())
+				slogger.warn("Cannot delete spool file "+temporary);
+		}
+	}
+
+	/** Reads the events of a spool file in the order they were written */
+	public static class Reader implements Closeable {
+
+		private final File file;
+		private final RandomAccessFile input;
+		private final FileChannel channel;
+		private final long size;
+		private final StringDictionary dictionary = new StringDictionary();
+		private final CRC32 crc = new CRC32();
+		private byte[] bytes = new byte[256];
+
+		/** Mapped part of the file, starting at windowStart */
+		private MappedByteBuffer window;
+		private long windowStart;
+
+		/** Start of the next block and the events left in the current one */
+		private long next = FILE_HEADER;
+		private ByteBuffer block;
+		private int blockEvents = 0;
+		private int blockNumber = 0;
+
+		public Reader(File file) throws IOException {
+			this.file = file;
+			input = new RandomAccessFile(file, "r");
+			channel = input.getChannel();
+			size = channel.size();
+			try {
+				if (size < FILE_HEADER)
+					throw new IOException(file+" is not a spool file.");
+				map(0, FILE_HEADER);
+				if (window.getInt(0) != MAGIC)
+					throw new IOException(file+" is not a spool file.");
+				if (window.getInt(4) != VERSION)
+					throw new IOException(file+" is version "+window.getInt(4)+" of the spool format, "+VERSION+" is read.");
+			} catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+
+		/** Maps the part of the file from the position, at least the given length */
+		private void map(long position, int length) throws IOException {
+			if (window != null && position >= windowStart && position + length <= windowStart + window.capacity())
+				return;
+			long mapped = Math.min(size - position, Math.max(WINDOW, length));
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, mapped);
+			windowStart = position;
+		}
+
+		/**
+		 * The next event, a new instance each time.
+		 * @return null at the end of the file
+		 * @throws IOException if a block is incomplete or does not match its checksum
+		 */
+		public PrintingDetails next() throws IOException {
+			while (blockEvents == 0) {
+				if (next == size)
+					return null;
+				readBlock();
+			}
+			ByteBuffer b = block;
+			PrintingDetails details = new PrintingDetails();
+			details.printTime = new Timestamp(b.getLong());
+			details.bannerID = b.getInt();
+			details.pages = b.getInt();
+			details.printerName = dictionary.get(b.getInt());
+			details.regNo = dictionary.get(b.getInt());
+			details.server = dictionary.get(b.getInt());
+			int length = b.getInt();
+			if (length >= 0)
+				details.documentName = string(b, length);
+			blockEvents--;
+			return details;
+		}
+
+		private void readBlock() throws IOException {
+			blockNumber++;
+			if (size - next < BLOCK_HEADER)
+				throw new IOException("Block "+blockNumber+" of "+file+" is incomplete.");
+			map(next, BLOCK_HEADER);
+			int offset = (int) (next - windowStart);
+			int length = window.getInt(offset);
+			int events = window.getInt(offset + 4);
+			int strings = window.getInt(offset + 8);
+			long checksum = window.getLong(offset + 12);
+			if (length < 0 || size - next - BLOCK_HEADER < length)
+				throw new IOException("Block "+blockNumber+" of "+file+" is incomplete.");
+			map(next, BLOCK_HEADER + length);
+			offset = (int) (next - windowStart) + BLOCK_HEADER;
+			ByteBuffer payload = window.duplicate();
+			payload.limit(offset + length).position(offset);
+			block = payload.slice();
+			crc.reset();
+			crc.update(payload);
+			if (crc.getValue() != checksum)
+				throw new IOException("Block "+blockNumber+" of "+file+" does not match its checksum.");
+			for (int i = 0; i < strings; i++)
+				dictionary.add(string(block, block.getShort() & 0xffff));
+			blockEvents = events;
+			next += BLOCK_HEADER + length;
+		}
+
+		private String string(ByteBuffer b, int length) {
+			if (bytes.length < length)
+				bytes = new byte[Math.max(length, 2 * bytes.length)];
+			b.get(bytes, 0, length);
+			return new String(bytes, 0, length, StandardCharsets.UTF_8);
+		}
+
+		public void close() throws IOException {
+			window = null;
+			block = null;
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+/*
+ * Event source for an export that already exists on disk, such as a saved copy of a day's log.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+/** The FileEventSource class */
+public class FileEventSource implements EventSource {
+
+	private final File file;
+	private CsvEventReader reader;
+
+	public FileEventSource(File file) {
+		this.file = file;
+	}
+
+	/** The dates are ignored, the whole file is read */
+	public CsvEventReader open(Date startDate, Date endDate) throws IOException {
+		reader = new CsvEventReader(file, CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN,
+				CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		return reader;
+	}
+
+	public void close() throws IOException {
+		if (reader != null)
+			reader.close();
+		reader = null;
+	}
+}
@@ -0,0 +1,335 @@
+/*
+ * Keeps loading the exports written to the drop directory, so that printed documents are charged
+ * within seconds instead of on the next day's run.
+ *
+ * The directory is watched for CSV files being created or growing. Each file is read from where
+ * the last read stopped, up to the last complete record, so a file that is still being written is
+ * read a piece at a time. How far each file has been read is kept in IngestOffsets and committed
+ * with its events. The events are committed once BATCH_EVENTS of them have been read or the first of
+ * them was read BATCH_MILLIS ago, whichever comes first. One CreatePrinterLogCSV loads the events for as
+ * long as the daemon runs, so its connection, prepared statements, month tables and costs are kept from
+ * one batch to the next and each batch only commits and starts a new transaction. The usage report and
+ * the metrics summary are written once a day and when the daemon stops, not for every batch.
+ *
+ * The exports of a directory are not in time order, so no watermark is kept. A file that is read
+ * again after a crash between the commit of the events and of the dedup index is protected by the index.
+ * Nothing is done while no file changes, the directory is only scanned again every RESCAN_MILLIS in
+ * case a change was missed, as can happen on network shares.
+ */
+
+package logExtraction;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/** The IngestDaemon class */
+public class IngestDaemon {
+
+	static Logger slogger = Logger.getLogger(IngestDaemon.class);
+
+	/** Default age and size at which the events read are committed */
+	static final long DEFAULT_BATCH_MILLIS = 5 * 1000L;
+	static final int DEFAULT_BATCH_EVENTS = 5000;
+
+	/** Time after which the directory is scanned even if no change was reported */
+	static final long RESCAN_MILLIS = 60 * 1000L;
+
+	/** Time to wait after a batch could not be committed before the files are read again */
+	static final long RETRY_MILLIS = 30 * 1000L;
+
+	/** Bytes read from a file at a time, a record must fit in it */
+	static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	private final File directory;
+	private final long batchMillis;
+	private final int batchEvents;
+
+	private IngestOffsets offsets;
+
+	/** Loads the events of every batch, made when the first file is read */
+	private CreatePrinterLogCSV loader;
+
+	/** Whether events were read that are waiting to be committed */
+	private boolean pending = false;
+	private long batchStarted;
+	private long batchStartRows;
+
+	/** Files are not read before this time after a failed commit, and then all of them are read again */
+	private long retryAt = 0;
+	private boolean rescan = false;
+
+	private WatchService watcher;
+	private volatile boolean stopped = false;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param batchMillis age at which the events read are committed
+	 * @param batchEvents number of events at which the events read are committed
+	 */
+	public IngestDaemon(File directory, long batchMillis, int batchEvents) {
+		this(directory, batchMillis, batchEvents, null);
+	}
+
+	/** Loads the events with the given loader, such as one on an embedded database for testing */
+	IngestDaemon(File directory, long batchMillis, int batchEvents, CreatePrinterLogCSV loader) {
+		this.directory = directory;
+		this.batchMillis = batchMillis;
+		this.batchEvents = batchEvents;
+		if (loader != null) {
+			loader.setWatermarkSource(null);
+			loader.setRunName("daemon");
+		}
+		this.loader = loader;
+	}
+
+	/** Watches the directory until stop() is called */
+	public void run() throws IOException, InterruptedException {
+		watcher = FileSystems.getDefault().newWatchService();
+		try {
+			directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			slogger.info("Watching "+directory+" for exports.");
+			scan();
+			long lastScan = System.currentTimeMillis();
+			while (!stopped) {
+				long now = System.currentTimeMillis();
+				long wait = !pending ? Math.max(retryAt, lastScan + RESCAN_MILLIS) - now : batchStarted + batchMillis - now;
+				Set<String> changed = new HashSet<String>();
+				try {
+					WatchKey key = watcher.poll(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+					// Changes reported together are read together
+					while (key != null) {
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+								rescan = true;
+							else
+								changed.add(((Path) event.context()).toString());
+						}
+						key.reset();
+						key = watcher.poll();
+					}
+				} catch (ClosedWatchServiceException e) {
+					break;
+				}
+				now = System.currentTimeMillis();
+				if (now >= retryAt) {
+					if (rescan || now - lastScan >= RESCAN_MILLIS) {
+						rescan = false;
+						scan();
+						lastScan = now;
+					} else {
+						for (String name : changed)
+							read(new File(directory, name));
+					}
+				}
+				if (pending && System.currentTimeMillis() - batchStarted >= batchMillis)
+					commit();
+			}
+		} finally {
+			if (pending)
+				commit();
+			if (loader != null) {
+				loader.endReportDay();
+				loader.close();
+			}
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				slogger.warn("Cannot close directory watcher. "+e.getMessage());
+			}
+			slogger.info("Stopped watching "+directory);
+			finished.countDown();
+		}
+	}
+
+	/** Stops watching, committing what was read, and waits for it to be done */
+	public void stop() throws InterruptedException {
+		stopped = true;
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				slogger.warn("Cannot close directory watcher. "+e.getMessage());
+			}
+			finished.await();
+		}
+	}
+
+	/** Reads every export of the directory that grew since it was last read */
+	private void scan() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			slogger.warn("Cannot list "+directory);
+			return;
+		}
+		for (File file : files)
+			read(file);
+	}
+
+	private static boolean isExport(File file) {
+		return file.isFile() && file.getName().toLowerCase().endsWith(".csv");
+	}
+
+	/** Loads the records added to the file since it was last read */
+	private void read(File file) {
+		if (!isExport(file) || System.currentTimeMillis() < retryAt)
+			return;
+		try {
+			if (offsets == null) {
+				offsets = loader().loadOffsets();
+				loader.setOffsets(offsets);
+			}
+			String name = file.getName();
+			long offset = offsets.get(name);
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				long size = in.length();
+				if (size < offset) {
+					slogger.warn(name+" is shorter than what was loaded from it, it is read again from the start.");
+					offset = 0;
+				}
+				if (size == offset)
+					return;
+				// The byte order mark, if any, tells how the whole file is encoded
+				byte[] mark = new byte[3];
+				in.seek(0);
+				int markRead = in.read(mark);
+				Charset charset = StandardCharsets.UTF_8;
+				int markLength = 0;
+				if (markRead >= 2 && (mark[0] & 0xff) == 0xff && (mark[1] & 0xff) == 0xfe) {
+					charset = StandardCharsets.UTF_16LE;
+					markLength = 2;
+				} else if (markRead >= 2 && (mark[0] & 0xff) == 0xfe && (mark[1] & 0xff) == 0xff) {
+					charset = StandardCharsets.UTF_16BE;
+					markLength = 2;
+				} else if (markRead == 3 && (mark[0] & 0xff) == 0xef && (mark[1] & 0xff) == 0xbb && (mark[2] & 0xff) == 0xbf) {
+					markLength = 3;
+				}
+				while (offset < size) {
+					byte[] bytes = new byte[(int) Math.min(size - offset, SEGMENT_SIZE)];
+					in.seek(offset);
+					in.readFully(bytes);
+					int start = offset == 0 ? Math.min(markLength, bytes.length) : 0;
+					int end = recordsEnd(bytes, start, charset);
+					if (end == start) {
+						if (bytes.length == SEGMENT_SIZE)
+							slogger.warn(name+" has a record longer than "+SEGMENT_SIZE+" bytes at "+offset+", it is not read further.");
+						// The rest is a record still being written
+						return;
+					}
+					// The offset only moves past the start once the column headers were read, as a part
+					// read from anywhere else is taken to start after them
+					if (!load(name, bytes, start, end, charset, offset == 0))
+						return;
+					offset += end;
+					offsets.set(name, offset);
+					if (IngestMetrics.get().rowsRead.get() - batchStartRows >= batchEvents && !commit())
+						return;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException | SQLException e) {
+			slogger.fatal("Cannot read "+file+". "+e.getMessage());
+		}
+	}
+
+	/**
+	 * End of the last complete record, just after its line feed. Line feeds inside quotes are part
+	 * of a message. Quotes and line feeds are single bytes in UTF-8 and cannot be part of another character.
+	 */
+	static int recordsEnd(byte[] bytes, int start, Charset charset) {
+		boolean quoted = false;
+		int end = start;
+		if (charset == StandardCharsets.UTF_8) {
+			for (int i = start; i < bytes.length; i++) {
+				if (bytes[i] == '"')
+					quoted = !quoted;
+				else if (bytes[i] == '\n' && !quoted)
+					end = i + 1;
+			}
+		} else {
+			boolean bigEndian = charset == StandardCharsets.UTF_16BE;
+			for (int i = start; i + 1 < bytes.length; i += 2) {
+				int c = bigEndian ? (bytes[i] & 0xff) << 8 | (bytes[i + 1] & 0xff) : (bytes[i + 1] & 0xff) << 8 | (bytes[i] & 0xff);
+				if (c == '"')
+					quoted = !quoted;
+				else if (c == '\n' && !quoted)
+					end = i + 2;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Loads the records between start and end, starting a batch if none is open.
+	 * @return false if they are the start of the export and the column headers were not among them
+	 */
+	private boolean load(final String name, byte[] bytes, int start, int end, Charset charset, boolean fromStart) throws IOException {
+		final CsvEventReader csv = new CsvEventReader(new InputStreamReader(new ByteArrayInputStream(bytes, start, end - start), charset),
+				CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN, CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		if (!fromStart)
+			csv.setHeaderSkipped();
+		if (!pending) {
+			pending = true;
+			batchStarted = System.currentTimeMillis();
+			batchStartRows = IngestMetrics.get().rowsRead.get();
+		}
+		loader().loadEvents(new EventSource() {
+			public CsvEventReader open(Date startDate, Date endDate) {
+				return csv;
+			}
+
+			public void close() throws IOException {
+				csv.close();
+			}
+		}, null, null);
+		return csv.isHeaderSkipped();
+	}
+
+	/** The loader of the daemon, making it the first time it is needed */
+	private CreatePrinterLogCSV loader() {
+		if (loader == null) {
+			loader = new CreatePrinterLogCSV();
+			loader.setWatermarkSource(null);
+			loader.setRunName("daemon");
+		}
+		return loader;
+	}
+
+	/**
+	 * Commits the events read so far and the offsets they were read up to.
+	 * @return false if the batch was rolled back, in which case the files are read again from the offsets committed
+	 */
+	private boolean commit() {
+		pending = false;
+		if (loader.commit()) {
+			offsets.commit();
+			return true;
+		}
+		offsets.rollback();
+		retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+		rescan = true;
+		slogger.warn("Files are read again in "+(RETRY_MILLIS / 1000)+" seconds.");
+		return false;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Counters and latency histograms for each stage of loading the log:
+ * the export, reading rows, parsing, cost lookups, month table inserts, ledger writes and commits.
+ * One instance is shared by everything in the process and registered with the platform MBean server
+ * as logExtraction:type=IngestMetrics, so it can be watched with jconsole while a run is going on.
+ * The MBean shows the totals of the process. A run takes a snapshot when it starts and writes a
+ * summary of what the process counted since to printer.log when it ends. The counters are those of the
+ * whole process, so the summary is only about the run itself when no other run is going on, as for a
+ * daily run or a batch of the daemon. The shards of a backfill run at the same time, and the summary of
+ * each also counts the rows, failures and latencies of the others. A reset() during a run makes the
+ * counts of its summary wrong, even negative.
+ */
+
+package logExtraction;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/** The IngestMetrics class */
+public class IngestMetrics implements IngestMetricsMBean {
+
+	static Logger slogger = Logger.getLogger(IngestMetrics.class);
+
+	static final String OBJECT_NAME = "logExtraction:type=IngestMetrics";
+
+	private static final IngestMetrics INSTANCE = new IngestMetrics();
+
+	static {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		} catch (Exception e) {
+			slogger.warn("Unable to register metrics with JMX. "+e.getMessage());
+		}
+	}
+
+	/** Durations of each stage */
+	final LatencyHistogram export = new LatencyHistogram();
+	final LatencyHistogram parse = new LatencyHistogram();
+	final LatencyHistogram insertBatch = new LatencyHistogram();
+	final LatencyHistogram ledger = new LatencyHistogram();
+	final LatencyHistogram commit = new LatencyHistogram();
+
+	final AtomicLong rowsRead = new AtomicLong();
+	final AtomicLong parseFailures = new AtomicLong();
+	final AtomicLong duplicatesSkipped = new AtomicLong();
+	final AtomicLong quarantined = new AtomicLong();
+	final AtomicLong costLookupHits = new AtomicLong();
+	final AtomicLong costLookupMisses = new AtomicLong();
+
+	private volatile long startedAt = System.nanoTime();
+
+	private IngestMetrics() {
+	}
+
+	/** The metrics of this process */
+	public static IngestMetrics get() {
+		return INSTANCE;
+	}
+
+	public long getExportMillis() {
+		return export.getTotalNanos() / 1000000;
+	}
+
+	public long getRowsRead() {
+		return rowsRead.get();
+	}
+
+	public double getRowsPerSecond() {
+		double seconds = (System.nanoTime() - startedAt) / 1e9;
+		return seconds > 0 ? rowsRead.get() / seconds : 0;
+	}
+
+	public long getEventsParsed() {
+		return parse.getCount();
+	}
+
+	public long getParseFailures() {
+		return parseFailures.get();
+	}
+
+	public long getDuplicatesSkipped() {
+		return duplicatesSkipped.get();
+	}
+
+	public long getQuarantined() {
+		return quarantined.get();
+	}
+
+	public double getParseP50Micros() {
+		return parse.percentileNanos(50) / 1e3;
+	}
+
+	public double getParseP99Micros() {
+		return parse.percentileNanos(99) / 1e3;
+	}
+
+	public long getCostLookupHits() {
+		return costLookupHits.get();
+	}
+
+	public long getCostLookupMisses() {
+		return costLookupMisses.get();
+	}
+
+	public long getInsertBatches() {
+		return insertBatch.getCount();
+	}
+
+	public double getInsertBatchP50Millis() {
+		return insertBatch.percentileNanos(50) / 1e6;
+	}
+
+	public double getInsertBatchP99Millis() {
+		return insertBatch.percentileNanos(99) / 1e6;
+	}
+
+	public double getLedgerP50Millis() {
+		return ledger.percentileNanos(50) / 1e6;
+	}
+
+	public double getLedgerP99Millis() {
+		return ledger.percentileNanos(99) / 1e6;
+	}
+
+	public double getCommitP50Millis() {
+		return commit.percentileNanos(50) / 1e6;
+	}
+
+	public double getCommitP99Millis() {
+		return commit.percentileNanos(99) / 1e6;
+	}
+
+	private static String stage(String name, LatencyHistogram histogram) {
+		return String.format("%s n=%d p50=%.3fms p99=%.3fms total=%.1fs", name, histogram.getCount(),
+				histogram.percentileNanos(50) / 1e6, histogram.percentileNanos(99) / 1e6, histogram.getTotalNanos() / 1e9);
+	}
+
+	public String[] getStageSummaries() {
+		return new String[] { stage("export", export), stage("parse", parse), stage("insert", insertBatch),
+				stage("ledger", ledger), stage("commit", commit) };
+	}
+
+	/** Starts counting again, for the next run in the same process */
+	public void reset() {
+		export.reset();
+		parse.reset();
+		insertBatch.reset();
+		ledger.reset();
+		commit.reset();
+		rowsRead.set(0);
+		parseFailures.set(0);
+		duplicatesSkipped.set(0);
+		quarantined.set(0);
+		costLookupHits.set(0);
+		costLookupMisses.set(0);
+		startedAt = System.nanoTime();
+	}
+
+	/** Copy of the metrics as they are now, for a run to report only what is counted after it started */
+	public IngestMetrics snapshot() {
+		IngestMetrics copy = new IngestMetrics();
+		copy.add(this, 1);
+		copy.startedAt = System.nanoTime();
+		return copy;
+	}
+
+	/** What the process counted since the snapshot was taken, with the rate measured from the snapshot */
+	public IngestMetrics since(IngestMetrics snapshot) {
+		IngestMetrics run = snapshot();
+		run.add(snapshot, -1);
+		run.startedAt = snapshot.startedAt;
+		return run;
+	}
+
+	/** Adds the counts of other metrics, or takes them away for a sign of -1 */
+	private void add(IngestMetrics other, int sign) {
+		export.add(other.export, sign);
+		parse.add(other.parse, sign);
+		insertBatch.add(other.insertBatch, sign);
+		ledger.add(other.ledger, sign);
+		commit.add(other.commit, sign);
+		rowsRead.addAndGet(sign * other.rowsRead.get());
+		parseFailures.addAndGet(sign * other.parseFailures.get());
+		duplicatesSkipped.addAndGet(sign * other.duplicatesSkipped.get());
+		quarantined.addAndGet(sign * other.quarantined.get());
+		costLookupHits.addAndGet(sign * other.costLookupHits.get());
+		costLookupMisses.addAndGet(sign * other.costLookupMisses.get());
+	}
+
+	/** Writes the summary to the log, the summary of a run is that of since(snapshot) */
+	public void logSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("Summary of the process since the run started: rows=%d rows/sec=%.0f parse failures=%d quarantined=%d duplicates=%d cost lookups=%d hits %d misses;",
+				rowsRead.get(), getRowsPerSecond(), parseFailures.get(), quarantined.get(), duplicatesSkipped.get(), costLookupHits.get(),
+				costLookupMisses.get()));
+		for (String stage : getStageSummaries())
+			summary.append(' ').append(stage).append(';');
+		slogger.info(summary.toString());
+	}
+}
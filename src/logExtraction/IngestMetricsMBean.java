@@ -0,0 +1,51 @@
+/*
+ * What IngestMetrics shows through JMX while a run is in progress.
+ * Durations are in milliseconds unless the name says otherwise.
+ */
+
+package logExtraction;
+
+/** The IngestMetricsMBean interface */
+public interface IngestMetricsMBean {
+
+	long getExportMillis();
+
+	long getRowsRead();
+
+	double getRowsPerSecond();
+
+	long getEventsParsed();
+
+	long getParseFailures();
+
+	long getDuplicatesSkipped();
+
+	long getQuarantined();
+
+	double getParseP50Micros();
+
+	double getParseP99Micros();
+
+	long getCostLookupHits();
+
+	long getCostLookupMisses();
+
+	long getInsertBatches();
+
+	double getInsertBatchP50Millis();
+
+	double getInsertBatchP99Millis();
+
+	double getLedgerP50Millis();
+
+	double getLedgerP99Millis();
+
+	double getCommitP50Millis();
+
+	double getCommitP99Millis();
+
+	/** One line per stage with its count, p50 and p99 */
+	String[] getStageSummaries();
+
+	void reset();
+}
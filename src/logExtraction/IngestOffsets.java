@@ -0,0 +1,114 @@
+/*
+ * How far each export in the drop directory has been loaded, kept in the ingestOffsets table.
+ * The offsets are written in the same transaction as the events read up to them, so after a crash
+ * the daemon carries on from the last commit, like the watermark does for a one-shot run.
+ * Offsets set since the last commit are only kept once the run is committed.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/** The IngestOffsets class */
+public class IngestOffsets {
+
+	/** Offsets that are committed */
+	private final Map<String, Long> committed = new HashMap<String, Long>();
+
+	/** Offsets set since the last commit */
+	private final Map<String, Long> pending = new HashMap<String, Long>();
+
+	private IngestOffsets() {
+	}
+
+	/** Reads the offsets of all files, creating the table if it does not exist yet */
+	public static IngestOffsets load(Connection connection, String schema) throws SQLException {
+		createTableIfRequired(connection, schema);
+		IngestOffsets offsets = new IngestOffsets();
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet result = statement.executeQuery("SELECT fileName, byteOffset FROM "+schema+".ingestOffsets");
+			while (result.next())
+				offsets.committed.put(result.getString(1), result.getLong(2));
+			result.close();
+		} finally {
+			statement.close();
+		}
+		return offsets;
+	}
+
+	private static void createTableIfRequired(Connection connection, String schema) throws SQLException {
+		PreparedStatement exists = connection.prepareStatement(
+				"SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME LIKE ?");
+		try {
+			exists.setString(1, "ingestOffsets");
+			ResultSet result = exists.executeQuery();
+			boolean found = result.next();
+			result.close();
+			if (found)
+				return;
+		} finally {
+			exists.close();
+		}
+		Statement create = connection.createStatement();
+		try {
+			create.executeUpdate("CREATE TABLE "+schema+".ingestOffsets ( fileName nvarchar(260), byteOffset bigint )");
+		} finally {
+			create.close();
+		}
+	}
+
+	/** Offset up to which the file has been read, 0 if it is new */
+	public long get(String fileName) {
+		Long offset = pending.get(fileName);
+		if (offset == null)
+			offset = committed.get(fileName);
+		return offset == null ? 0 : offset;
+	}
+
+	/** Records that the file has been read up to the offset */
+	public void set(String fileName, long offset) {
+		pending.put(fileName, offset);
+	}
+
+	/** Writes the offsets set since the last commit without committing, to be committed with the events */
+	public void save(Connection connection, String schema) throws SQLException {
+		if (pending.isEmpty())
+			return;
+		PreparedStatement update = connection.prepareStatement(
+				"UPDATE "+schema+".ingestOffsets SET byteOffset = ? WHERE fileName = ?");
+		PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO "+schema+".ingestOffsets (fileName, byteOffset) VALUES (?,?)");
+		try {
+			for (Map.Entry<String, Long> entry : pending.entrySet()) {
+				update.setLong(1, entry.getValue());
+				update.setString(2, entry.getKey());
+				if (update.executeUpdate() > 0)
+					continue;
+				insert.setString(1, entry.getKey());
+				insert.setLong(2, entry.getValue());
+				insert.executeUpdate();
+			}
+		} finally {
+			update.close();
+			insert.close();
+		}
+	}
+
+	/** Keeps the offsets set since the last commit, to be done once the run is committed */
+	public void commit() {
+		committed.putAll(pending);
+		pending.clear();
+	}
+
+	/** Forgets the offsets set since the last commit, for when the run was rolled back */
+	public void rollback() {
+		pending.clear();
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Runs the reading, parsing and loading of an export on separate threads.
+ * One thread reads the CSV, a pool of parser threads turns the messages into PrintingDetails and
+ * the calling thread writes them to the database. The stages are joined by bounded queues so a
+ * slow database holds back the reader instead of filling the heap.
+ * Chunks are written in the order they were read, so the database sees exactly the same sequence
+ * of events as when everything runs on one thread and the ledger totals do not depend on timing.
+ */
+
+package logExtraction;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The IngestPipeline class */
+public class IngestPipeline {
+
+	/** Number of rows handed between the stages at a time */
+	static final int CHUNK_SIZE = 256;
+
+	/** Receives the parsed events in the order they appear in the export. Called only from the writer thread. */
+	interface EventSink {
+		void write(PrintingDetails details);
+
+		/** A message that could not be parsed, with the time and print server of its row */
+		void failed(String content, String date, String server, String reason);
+	}
+
+	/** Rows read together and their parsed results */
+	private static final class Chunk {
+		final long sequence;
+		final String[] contents;
+		final String[] dates;
+		final String[] servers;
+		int size;
+		PrintingDetails[] details;
+		String[] errors;
+
+		/** Set on the chunk that marks the end of the input */
+		boolean last;
+		Exception error;
+
+		Chunk(long sequence, int capacity) {
+			this.sequence = sequence;
+			contents = new String[capacity];
+			dates = new String[capacity];
+			servers = new String[capacity];
+		}
+	}
+
+	private final int parserThreads;
+	private final int queueCapacity;
+
+	/**
+	 * @param parserThreads number of threads parsing messages
+	 * @param queueCapacity number of chunks each queue holds before the stage feeding it has to wait
+	 */
+	public IngestPipeline(int parserThreads, int queueCapacity) {
+		this.parserThreads = Math.max(1, parserThreads);
+		this.queueCapacity = Math.max(1, queueCapacity);
+	}
+
+	/**
+	 * Reads all rows of the export and passes the parsed events to the sink.
+	 * @return number of rows read
+	 */
+	public long run(final CsvEventReader csv, EventSink sink) throws IOException, InterruptedException {
+		final BlockingQueue<Chunk> readQueue = new ArrayBlockingQueue<Chunk>(queueCapacity);
+		final BlockingQueue<Chunk> parsedQueue = new ArrayBlockingQueue<Chunk>(queueCapacity);
+		// Chunks read but not yet written, this also bounds the chunks waiting for an earlier one to be parsed
+		final Semaphore inFlight = new Semaphore(2 * queueCapacity + parserThreads);
+		ExecutorService threads = Executors.newFixedThreadPool(parserThreads + 1);
+		try {
+			threads.execute(new Runnable() {
+				public void run() {
+					read(csv, readQueue, inFlight);
+				}
+			});
+			for (int i = 0; i < parserThreads; i++) {
+				threads.execute(new Runnable() {
+					public void run() {
+						parse(readQueue, parsedQueue);
+					}
+				});
+			}
+			return write(parsedQueue, sink, inFlight);
+		} finally {
+			// Stops the other stages if the writer gave up early
+			threads.shutdownNow();
+		}
+	}
+
+	/** Reader stage */
+	private void read(CsvEventReader csv, BlockingQueue<Chunk> readQueue, Semaphore inFlight) {
+		IngestMetrics metrics = IngestMetrics.get();
+		long sequence = 0;
+		Exception error = null;
+		try {
+			Chunk chunk = new Chunk(sequence++, CHUNK_SIZE);
+			while (csv.next()) {
+				chunk.contents[chunk.size] = csv.get(0);
+				chunk.dates[chunk.size] = csv.get(1);
+				chunk.servers[chunk.size] = csv.get(2);
+				metrics.rowsRead.incrementAndGet();
+				if (++chunk.size == CHUNK_SIZE) {
+					inFlight.acquire();
+					readQueue.put(chunk);
+					chunk = new Chunk(sequence++, CHUNK_SIZE);
+				}
+			}
+			if (chunk.size > 0) {
+				inFlight.acquire();
+				readQueue.put(chunk);
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Exception e) {
+			error = e;
+		}
+		try {
+			// One end marker for every parser thread
+			for (int i = 0; i < parserThreads; i++) {
+				Chunk end = new Chunk(-1, 0);
+				end.last = true;
+				end.error = error;
+				readQueue.put(end);
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/** Parser stage, one per thread */
+	private void parse(BlockingQueue<Chunk> readQueue, BlockingQueue<Chunk> parsedQueue) {
+		Event307Parser parser = new Event307Parser();
+		IngestMetrics metrics = IngestMetrics.get();
+		try {
+			while (true) {
+				Chunk chunk = readQueue.take();
+				if (!chunk.last) {
+					chunk.details = new PrintingDetails[chunk.size];
+					chunk.errors = new String[chunk.size];
+					for (int i = 0; i < chunk.size; i++) {
+						long start = System.nanoTime();
+						// Sometimes line may have only non-printable chars, such lines are left out
+						if (parser.scan(chunk.contents[i]) <= 2) {
+							chunk.contents[i] = null;
+							continue;
+						}
+						try {
+							chunk.details[i] = parser.parse(chunk.dates[i], chunk.servers[i]);
+							chunk.contents[i] = null;
+						} catch (RuntimeException e) {
+							chunk.errors[i] = String.valueOf(e.getMessage());
+							chunk.contents[i] = parser.content();
+						}
+						metrics.parse.record(System.nanoTime() - start);
+					}
+				}
+				parsedQueue.put(chunk);
+				if (chunk.last)
+					return;
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	/** Writer stage, run on the calling thread which owns the database connection */
+	private long write(BlockingQueue<Chunk> parsedQueue, EventSink sink, Semaphore inFlight)
+			throws IOException, InterruptedException {
+		Map<Long, Chunk> waiting = new HashMap<Long, Chunk>();
+		long nextSequence = 0;
+		long rows = 0;
+		int endMarkers = 0;
+		Exception error = null;
+		while (endMarkers < parserThreads) {
+			Chunk chunk = parsedQueue.take();
+			if (chunk.last) {
+				endMarkers++;
+				if (chunk.error != null)
+					error = chunk.error;
+				continue;
+			}
+			waiting.put(chunk.sequence, chunk);
+			while ((chunk = waiting.remove(nextSequence)) != null) {
+				nextSequence++;
+				inFlight.release();
+				rows += chunk.size;
+				for (int i = 0; i < chunk.size; i++) {
+					if (chunk.details[i] != null)
+						sink.write(chunk.details[i]);
+					else if (chunk.errors[i] != null)
+						sink.failed(chunk.contents[i], chunk.dates[i], chunk.servers[i], chunk.errors[i]);
+				}
+			}
+		}
+		if (error instanceof IOException)
+			throw (IOException) error;
+		if (error != null)
+			throw new IOException("Unable to read export. " + error.getMessage(), error);
+		return rows;
+	}
+}
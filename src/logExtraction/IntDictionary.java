@@ -0,0 +1,70 @@
+/*
+ * Numbers the distinct int keys, such as days, in the order they are first seen, so that values
+ * of each key can be kept in plain arrays indexed by its number. The keys are held in an open
+ * addressing table of ints, no Integer is created for a key.
+ */
+
+package logExtraction;
+
+import java.util.Arrays;
+
+/** The IntDictionary class */
+public class IntDictionary {
+
+	/** Number of each slot plus one, 0 for a free slot */
+	private int[] slots = new int[64];
+	private int[] slotKeys = new int[64];
+
+	/** Key of each number */
+	private int[] keys = new int[32];
+	private int size = 0;
+
+	/** Number of the key, adding it if it is new */
+	public int code(int key) {
+		int mask = slots.length - 1;
+		int slot = mix(key) & mask;
+		while (slots[slot] != 0) {
+			if (slotKeys[slot] == key)
+				return slots[slot] - 1;
+			slot = (slot + 1) & mask;
+		}
+		if (size == keys.length)
+			keys = Arrays.copyOf(keys, 2 * size);
+		keys[size] = key;
+		slots[slot] = ++size;
+		slotKeys[slot] = key;
+		// Kept at most half full so that lookups stay short
+		if (2 * size > slots.length)
+			rehash();
+		return size - 1;
+	}
+
+	/** Key of the number */
+	public int get(int code) {
+		return keys[code];
+	}
+
+	/** Number of keys */
+	public int size() {
+		return size;
+	}
+
+	private void rehash() {
+		slots = new int[2 * slots.length];
+		slotKeys = new int[slots.length];
+		int mask = slots.length - 1;
+		for (int code = 0; code < size; code++) {
+			int slot = mix(keys[code]) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = code + 1;
+			slotKeys[slot] = keys[code];
+		}
+	}
+
+	/** Spreads keys such as consecutive days over the table */
+	private static int mix(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
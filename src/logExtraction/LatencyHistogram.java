@@ -0,0 +1,86 @@
+/*
+ * Histogram of durations with buckets growing by a quarter of a power of two,
+ * so percentiles are within about 20% at any scale while recording stays lock free.
+ */
+
+package logExtraction;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** The LatencyHistogram class */
+public class LatencyHistogram {
+
+	/** Sub buckets per power of two */
+	private static final int SUB_BITS = 2;
+	private static final int BUCKETS = 64 << SUB_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+
+	private static int bucket(long nanos) {
+		if (nanos < (1 << SUB_BITS))
+			return (int) Math.max(0, nanos);
+		int log = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (log - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+		return ((log - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	/** Largest value that falls into the bucket */
+	private static long upperBound(int bucket) {
+		if (bucket < (1 << SUB_BITS))
+			return bucket;
+		int log = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+		long sub = bucket & ((1 << SUB_BITS) - 1);
+		long lower = (1L << log) + (sub << (log - SUB_BITS));
+		return lower + (1L << (log - SUB_BITS)) - 1;
+	}
+
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return duration below which the given percentage of the recorded durations fall, 0 if nothing was recorded
+	 */
+	public long percentileNanos(double percentile) {
+		long total = count.get();
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/** Adds the durations of another histogram, or takes them away for a sign of -1 */
+	void add(LatencyHistogram other, int sign) {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.addAndGet(i, sign * other.counts.get(i));
+		count.addAndGet(sign * other.count.get());
+		totalNanos.addAndGet(sign * other.totalNanos.get());
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		totalNanos.set(0);
+	}
+}
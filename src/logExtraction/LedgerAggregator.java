@@ -0,0 +1,134 @@
+/*
+ * Sums the charges of every student for every month while the log is parsed,
+ * so that csgled is written once per student and month when the run commits.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The LedgerAggregator class */
+public class LedgerAggregator {
+
+	/** Charges of one student for one month */
+	static class LedgerEntry {
+		String regNo;
+		String monthMMM;
+		String yearYYYY;
+		int mon;
+		double charges;
+		int events;
+	}
+
+	/** Charges of each student and month, keyed on roll number and month */
+	private final Map<String, LedgerEntry> entries = new HashMap<String, LedgerEntry>();
+
+	/**
+	 * Adds charges to the entry of a student
+	 * @param mon year * 100 + month, month counted from 0 as csgled has always stored it
+	 */
+	public void add(String regNo, String monthMMM, String yearYYYY, int mon, double charges) {
+		String key = regNo + '\t' + monthMMM + yearYYYY;
+		LedgerEntry entry = entries.get(key);
+		if (entry == null) {
+			entry = new LedgerEntry();
+			entry.regNo = regNo;
+			entry.monthMMM = monthMMM;
+			entry.yearYYYY = yearYYYY;
+			entry.mon = mon;
+			entries.put(key, entry);
+		}
+		entry.charges += charges;
+		entry.events++;
+	}
+
+	/** Takes back the charges of an event that could not be loaded after all */
+	public void remove(String regNo, String monthMMM, String yearYYYY, double charges) {
+		String key = regNo + '\t' + monthMMM + yearYYYY;
+		LedgerEntry entry = entries.get(key);
+		if (entry == null)
+			return;
+		entry.charges -= charges;
+		// A student with no events left must not get an entry
+		if (--entry.events == 0)
+			entries.remove(key);
+	}
+
+	/** Number of student and month pairs */
+	public int size() {
+		return entries.size();
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/** Entries in order of roll number and month, so that writers running at the same time lock them in the same order */
+	private List<LedgerEntry> sortedEntries() {
+		List<String> keys = new ArrayList<String>(entries.keySet());
+		Collections.sort(keys);
+		List<LedgerEntry> sorted = new ArrayList<LedgerEntry>(keys.size());
+		for (String key : keys)
+			sorted.add(entries.get(key));
+		return sorted;
+	}
+
+	/**
+	 * Adds the summed charges to csgled, one MERGE per student and month.
+	 * Databases without MERGE get an update, followed by an insert if no entry existed.
+	 * Nothing is committed here.
+	 */
+	public void write(Connection connection, String schema, SqlDialect dialect) throws SQLException {
+		if (entries.isEmpty())
+			return;
+		List<LedgerEntry> sorted = sortedEntries();
+		String merge = dialect.ledgerMerge(schema);
+		if (merge != null) {
+			PreparedStatement mergeStatement = connection.prepareStatement(merge);
+			try {
+				for (LedgerEntry entry : sorted) {
+					mergeStatement.setString(1, entry.regNo);
+					mergeStatement.setString(2, entry.monthMMM + entry.yearYYYY);
+					mergeStatement.setFloat(3, (float) entry.charges);
+					mergeStatement.setString(4, "Printout charges for " + entry.monthMMM + " " + entry.yearYYYY);
+					mergeStatement.setFloat(5, entry.mon);
+					mergeStatement.addBatch();
+				}
+				mergeStatement.executeBatch();
+			} finally {
+				mergeStatement.close();
+			}
+			return;
+		}
+		PreparedStatement updateStatement = connection.prepareStatement(
+				"UPDATE " + schema + ".csgled SET charges = charges + ? WHERE rollno = ? AND mo = ?");
+		PreparedStatement insertStatement = connection.prepareStatement(
+				"INSERT INTO " + schema + ".csgled (rollno, remarks, drcr, charges, mon, mo) values (?,?,?,?,?,?)");
+		try {
+			for (LedgerEntry entry : sorted) {
+				updateStatement.setFloat(1, (float) entry.charges);
+				updateStatement.setString(2, entry.regNo);
+				updateStatement.setString(3, entry.monthMMM + entry.yearYYYY);
+				if (updateStatement.executeUpdate() == 0) {
+					insertStatement.setString(1, entry.regNo);
+					insertStatement.setString(2, "Printout charges for " + entry.monthMMM + " " + entry.yearYYYY);
+					insertStatement.setString(3, "dr");
+					insertStatement.setFloat(4, (float) entry.charges);
+					insertStatement.setFloat(5, entry.mon);
+					insertStatement.setString(6, entry.monthMMM + entry.yearYYYY);
+					insertStatement.executeUpdate();
+				}
+			}
+		} finally {
+			updateStatement.close();
+			insertStatement.close();
+		}
+	}
+}
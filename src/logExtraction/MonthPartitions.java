@@ -0,0 +1,123 @@
+/*
+ * Keeps track of the TEMP<Mon><YYYY> month tables, such as TEMPAug2012.
+ * The existing tables are listed once when a run starts and the tables for the dates being loaded
+ * are created before any event is written, so the month of an event is found without a query
+ * and no table is created while events are loaded. A month that was not expected, as can happen
+ * when a file of unknown dates is loaded, still has its table created the first time it is seen.
+ * The writers of a sharded run share one instance.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/** The MonthPartitions class */
+public class MonthPartitions {
+
+	static Logger slogger = Logger.getLogger(MonthPartitions.class);
+
+	/** Month names as Date.toString() gives them, which the table names have always used */
+	static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	private final Connection connection;
+	private final String schema;
+
+	/** Months whose table exists, as Aug2012 */
+	private final Set<String> tables = new HashSet<String>();
+
+	/** Reads the month tables that exist in the schema */
+	public MonthPartitions(Connection connection, String schema) throws SQLException {
+		this.connection = connection;
+		this.schema = schema;
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME LIKE 'TEMP%'");
+		try {
+			statement.setString(1, schema);
+			ResultSet result = statement.executeQuery();
+			while (result.next())
+				tables.add(result.getString(1).substring(4));
+			result.close();
+		} finally {
+			statement.close();
+		}
+	}
+
+	/** Month of a table name, as Aug2012, for month counted from 0 */
+	static String month(int year, int month) {
+		return MONTHS[month] + year;
+	}
+
+	/** Creates the tables of every month from the start date to the end date that do not exist yet */
+	public synchronized void createMonths(Date startDate, Date endDate) throws SQLException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.setTime(endDate);
+		int last = cal.get(Calendar.YEAR) * 12 + cal.get(Calendar.MONTH);
+		cal.setTime(startDate);
+		for (int m = cal.get(Calendar.YEAR) * 12 + cal.get(Calendar.MONTH); m <= last; m++) {
+			String month = month(m / 12, m % 12);
+			if (!tables.contains(month))
+				create(month);
+		}
+	}
+
+	/** Creates the table of the month if it does not exist, for months that were not created ahead */
+	public synchronized void ensure(String month) throws SQLException {
+		if (tables.contains(month))
+			return;
+		slogger.info("Table TEMP"+month+" was not created before the run, creating it now.");
+		create(month);
+	}
+
+	/** Month query must be inserted into a temporary table which will be finalized using frontend. Hence temp included in table name */
+	private void create(String month) throws SQLException {
+		String createMonthTableQuery = "CREATE TABLE "+
+				schema+".TEMP"+month+ "("
+					+"	rollno nvarchar(11),	"
+					+"	cdate nvarchar(10),		"
+					+"	A2 nvarchar(50),		"
+					+"	pages float(8),			"
+					+"	A11 nvarchar(25),		"
+					+"	charges float(8),		"
+					+"	line float(8),			"
+					+"  filename nvarchar(100)  "
+				+");";
+		Statement createStatement = connection.createStatement();
+		try {
+			createStatement.executeUpdate(createMonthTableQuery);
+		} catch (SQLException e) {
+			// Another run, such as a shard of a backfill, may have created it in the meantime
+			if (!exists(month))
+				throw e;
+		} finally {
+			createStatement.close();
+		}
+		tables.add(month);
+		slogger.info("Created table TEMP"+month);
+	}
+
+	private boolean exists(String month) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?");
+		try {
+			statement.setString(1, schema);
+			statement.setString(2, "TEMP"+month);
+			ResultSet result = statement.executeQuery();
+			boolean found = result.next();
+			result.close();
+			return found;
+		} finally {
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Loads the exports of several print servers together, parsing each on a thread of its own.
+ *
+ * Banner IDs are only unique within a print server, so every event carries the server it came from,
+ * taken from the MachineName column or, for an export without it, from the name given with the file.
+ * MachineName wins over the name given, as it is what the other runs and the dedup index know the
+ * server by, and a name given that differs from it is logged as a warning.
+ * The events of an export are kept in an EventBuffer, as a day or a backfill of every server is held
+ * until all exports are parsed. An export is not in time order, Get-WinEvent lists the newest event
+ * first, so each thread works out the time order of the events of its export once it is parsed,
+ * which takes one pass over an export that is in reverse order. The exports are then merged by time
+ * and handed to the writer, so the month tables and the ledger see the events of all servers as one
+ * stream in time order. The sink is told the time of the first and last event before it gets any,
+ * so that it can create the month tables ahead. The events are handed on as rows of the buffers, no PrintingDetails is made for them.
+ * The parsing of all exports takes about as long as that of the largest one.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/** The MultiServerIngest class */
+public class MultiServerIngest {
+
+	static Logger slogger = Logger.getLogger(MultiServerIngest.class);
+
+	/** Events buffered per export before the buffer grows */
+	static final int INITIAL_EVENTS = 64 * 1024;
+
+	/** An export and the print server it was taken on */
+	public static class Export {
+		final String server;
+		final File file;
+
+		/** Whether the server was given rather than taken from the file name */
+		final boolean named;
+
+		/** @param server used for the events of an export without MachineName, which wins over it */
+		public Export(String server, File file) {
+			this(server, file, true);
+		}
+
+		private Export(String server, File file, boolean named) {
+			this.server = server;
+			this.file = file;
+			this.named = named;
+		}
+
+		/** Parses server=file, or a file alone, which is then named after the file */
+		public static Export parse(String argument) {
+			int equals = argument.indexOf('=');
+			if (equals > 0)
+				return new Export(argument.substring(0, equals), new File(argument.substring(equals + 1)));
+			File file = new File(argument);
+			String name = file.getName();
+			return new Export(name.indexOf('.') > 0 ? name.substring(0, name.indexOf('.')) : name, file, false);
+		}
+	}
+
+	/** Takes the merged events, each a row of the buffer of its export */
+	public interface EventSink {
+		/** Called once before the events, with the times of the first and the last of them */
+		void range(Date startDate, Date endDate);
+
+		void write(EventBuffer events, int row);
+
+		/** A message that could not be parsed, with the time and print server of its row */
+		void failed(String content, String date, String server, String reason);
+	}
+
+	/** Events of one export with their time order, and the messages that could not be parsed */
+	private static class Parsed {
+		final Export export;
+		EventBuffer events;
+		int[] order;
+		final List<String[]> failures = new ArrayList<String[]>();
+
+		Parsed(Export export) {
+			this.export = export;
+		}
+	}
+
+	private final int threads;
+
+	/** @param threads number of exports parsed at once */
+	public MultiServerIngest(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Parses the exports and hands their events to the sink in time order, on the calling thread.
+	 * The messages that could not be parsed are handed to the sink first.
+	 * @return number of events handed to the sink
+	 */
+	public long run(List<Export> exports, EventSink sink) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, exports.size()));
+		List<Future<Parsed>> futures = new ArrayList<Future<Parsed>>();
+		try {
+			for (final Export export : exports) {
+				futures.add(pool.submit(new Callable<Parsed>() {
+					public Parsed call() throws IOException {
+						return parse(export);
+					}
+				}));
+			}
+			Parsed[] parsed = new Parsed[exports.size()];
+			for (int i = 0; i < parsed.length; i++) {
+				try {
+					parsed[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof IOException)
+						throw new IOException("Cannot read "+exports.get(i).file+". "+cause.getMessage(), cause);
+					throw new IOException("Cannot parse "+exports.get(i).file+". "+cause, cause);
+				}
+			}
+			slogger.info("Parsed "+exports.size()+" exports in "+(System.nanoTime() - start) / 1000000+" ms.");
+			for (Parsed p : parsed) {
+				for (String[] failure : p.failures)
+					sink.failed(failure[0], failure[1], failure[2], failure[3]);
+			}
+			return merge(parsed, sink);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Reads and parses an export, then works out the time order of its events */
+	private static Parsed parse(Export export) throws IOException {
+		Parsed parsed = new Parsed(export);
+		EventBuffer events = new EventBuffer(INITIAL_EVENTS);
+		IngestMetrics metrics = IngestMetrics.get();
+		Event307Parser parser = new Event307Parser();
+		CsvEventReader csv = new CsvEventReader(export.file, CreatePrinterLogCSV.MESSAGE_COLUMN,
+				CreatePrinterLogCSV.TIME_CREATED_COLUMN, CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		boolean warned = !export.named;
+		try {
+			while (csv.next()) {
+				metrics.rowsRead.incrementAndGet();
+				long start = System.nanoTime();
+				if (parser.scan(csv.field(0)) <= 2)
+					continue;
+				CharSequence server = csv.field(2).length() > 0 ? csv.field(2) : export.server;
+				if (!warned && !export.server.contentEquals(server)) {
+					slogger.warn(export.file+" was given as "+export.server+" but its events are of "+server
+							+", they are loaded as "+server+".");
+					warned = true;
+				}
+				try {
+					events.add(parser.parse(csv.field(1), server));
+				} catch (IllegalArgumentException e) {
+					parsed.failures.add(new String[] { parser.content(), csv.get(1), server.toString(), e.getMessage() });
+				}
+				metrics.parse.record(System.nanoTime() - start);
+			}
+		} finally {
+			csv.close();
+		}
+		parsed.events = events;
+		parsed.order = events.timeOrder();
+		slogger.info("Parsed "+events.size()+" events of "+export.server+" from "+export.file
+				+" into "+events.memoryUsed() / 1024+" KB");
+		return parsed;
+	}
+
+	/** Next event of an export in the merge */
+	private static class Cursor {
+		final EventBuffer events;
+		final int[] order;
+		int next = 0;
+
+		Cursor(EventBuffer events, int[] order) {
+			this.events = events;
+			this.order = order;
+		}
+	}
+
+	/** Hands the events of all exports to the sink, always taking the earliest of the next events of each */
+	private static long merge(Parsed[] parsed, EventSink sink) {
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for (Parsed p : parsed) {
+			if (p.events.size() > 0) {
+				first = Math.min(first, p.events.time(p.order[0]));
+				last = Math.max(last, p.events.time(p.order[p.order.length - 1]));
+			}
+		}
+		if (first <= last)
+			sink.range(new Date(first), new Date(last));
+		PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(Math.max(1, parsed.length), new Comparator<Cursor>() {
+			public int compare(Cursor a, Cursor b) {
+				return EventBuffer.compare(a.events, a.order[a.next], b.events, b.order[b.next]);
+			}
+		});
+		for (Parsed p : parsed) {
+			if (p.events.size() > 0)
+				heads.add(new Cursor(p.events, p.order));
+			// The exports are only referred to by the cursors from now on, so each can be collected once written
+			p.events = null;
+			p.order = null;
+		}
+		long count = 0;
+		Cursor head;
+		while ((head = heads.poll()) != null) {
+			sink.write(head.events, head.order[head.next++]);
+			count++;
+			if (head.next < head.order.length)
+				heads.add(head);
+		}
+		return count;
+	}
+}
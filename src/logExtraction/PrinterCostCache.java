@@ -0,0 +1,160 @@
+/*
+ * Keeps the costs table in memory so that the charges of an event can be found without a query.
+ * There are only a few dozen printers, so the whole table is read again when the refresh interval
+ * has passed. Printers removed from the table disappear on the next reload.
+ * Printer names are compared without case and trailing spaces, as the query on printername did on SQL Server.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/** The PrinterCostCache class */
+public class PrinterCostCache {
+
+	static Logger slogger = Logger.getLogger(PrinterCostCache.class);
+
+	/** Default time after which the costs table is read again */
+	static final long DEFAULT_REFRESH_MILLIS = 5 * 60 * 1000L;
+
+	/** Cost of printing on one printer as given in the costs table */
+	static class PrinterCost {
+		final float costPerPage;
+		final float costFirstPage;
+		final float additionalCost;
+
+		PrinterCost(float costPerPage, float costFirstPage, float additionalCost) {
+			this.costPerPage = costPerPage;
+			this.costFirstPage = costFirstPage;
+			this.additionalCost = additionalCost;
+		}
+
+		float charges(int pages) {
+			return costFirstPage + additionalCost + (costPerPage * pages);
+		}
+	}
+
+	private final Connection connection;
+	private final String schema;
+	private final long refreshMillis;
+
+	/** Replaced as a whole on every reload so that readers never see a half loaded table, keyed on key(printername) */
+	private volatile Map<String, PrinterCost> costs;
+	private volatile long loadedAt;
+
+	/** Keys of the printer names looked up, so that a key is not made for every event */
+	private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+
+	/** Printers that were looked up but are not in the costs table, logged once per reload */
+	private final Set<String> missingPrinters = new HashSet<String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+
+	/**
+	 * @param refreshMillis time after which the table is read again, 0 or less to read it only once
+	 */
+	public PrinterCostCache(Connection connection, String schema, long refreshMillis) {
+		this.connection = connection;
+		this.schema = schema;
+		this.refreshMillis = refreshMillis;
+	}
+
+	/** Printer name without trailing spaces and in lower case */
+	static String key(String printerName) {
+		int end = printerName.length();
+		while (end > 0 && printerName.charAt(end - 1) == ' ')
+			end--;
+		return printerName.substring(0, end).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Charges for printing pages on a printer.
+	 * Printers missing from the costs table are not charged, as was done when the table was queried for every event.
+	 */
+	public float charges(String printerName, int pages) throws SQLException {
+		PrinterCost cost = lookup(printerName);
+		return cost == null ? 0.0f : cost.charges(pages);
+	}
+
+	/** Returns the cost of a printer or null if it is not in the costs table */
+	public PrinterCost lookup(String printerName) throws SQLException {
+		if (costs == null || (refreshMillis > 0 && System.currentTimeMillis() - loadedAt > refreshMillis))
+			reload();
+		String key = keys.get(printerName);
+		if (key == null) {
+			key = key(printerName);
+			keys.put(printerName, key);
+		}
+		PrinterCost cost = costs.get(key);
+		if (cost != null) {
+			hits.incrementAndGet();
+			IngestMetrics.get().costLookupHits.incrementAndGet();
+			return cost;
+		}
+		misses.incrementAndGet();
+		IngestMetrics.get().costLookupMisses.incrementAndGet();
+		synchronized (missingPrinters) {
+			if (missingPrinters.add(printerName))
+				slogger.warn("No cost found for printer "+printerName+". It will not be charged.");
+		}
+		return null;
+	}
+
+	/** Reads the whole costs table, replacing the cached values */
+	private synchronized void reload() throws SQLException {
+		if (costs != null && (refreshMillis <= 0 || System.currentTimeMillis() - loadedAt <= refreshMillis))
+			return;
+		Map<String, PrinterCost> loaded = new HashMap<String, PrinterCost>();
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT printername, costperpage, costFirstpage, additionalCost FROM "+schema+".costs");
+		try {
+			ResultSet result = statement.executeQuery();
+			while (result.next()) {
+				String printerName = result.getString("printername");
+				if (printerName == null)
+					continue;
+				loaded.put(key(printerName), new PrinterCost(result.getFloat("costperpage"),
+						result.getFloat("costFirstpage"), result.getFloat("additionalCost")));
+			}
+			result.close();
+		} finally {
+			statement.close();
+		}
+		if (costs != null && !costs.keySet().equals(loaded.keySet()))
+			slogger.info("Printers in costs table changed from "+costs.keySet()+" to "+loaded.keySet());
+		costs = loaded;
+		synchronized (missingPrinters) {
+			missingPrinters.clear();
+		}
+		loadedAt = System.currentTimeMillis();
+		reloads.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** Writes the hit and miss counts to the log */
+	public void logStatistics() {
+		slogger.info("Printer cost lookups: "+hits.get()+" hits, "+misses.get()+" misses, "
+				+reloads.get()+" reloads of costs table");
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Writes the printing details extracted from the log into the database.
+ * Prepared statements are kept for the whole run and inserts are batched separately for each month table,
+ * or the month tables are loaded with the bulk loader of the database when a BulkMonthLoader is given.
+ * The month tables are looked up and created through MonthPartitions.
+ * When a Quarantine is given, a batch the database rejects is rolled back and sent again one row
+ * at a time, and the rows that still fail are quarantined instead of failing the run.
+ * Charges are summed per student and month and written to csgled when the run is flushed.
+ * Events are taken as a PrintingDetails or as a row of an EventBuffer, which is bound straight from its columns.
+ */
+
+package logExtraction;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The PrintingDetailsWriter class */
+public class PrintingDetailsWriter {
+
+	/** Number of month table inserts sent to the database in one round trip */
+	static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final Connection connection;
+	private final String schema;
+	private final SqlDialect dialect;
+	private final int batchSize;
+
+	/** Charges not yet written to csgled */
+	private final LedgerAggregator ledger = new LedgerAggregator();
+
+	/** Costs of the printers, read once instead of for every event */
+	private final PrinterCostCache costs;
+
+	/** Stages the month table rows for the bulk loader, null to insert them in batches */
+	private final BulkMonthLoader bulk;
+
+	/** Where rows rejected by the database go, null to fail on them */
+	private Quarantine quarantine;
+
+	/** Usage of the events written, null if no report is made */
+	private UsageReport report;
+
+	/** Month tables that exist, read when the writer is created */
+	private final MonthPartitions partitions;
+
+	/** Month table rows of the run, keyed on year * 12 + month */
+	private final Map<Integer, Partition> monthPartitions = new HashMap<Integer, Partition>();
+
+	/** Partition of the last event, events mostly come in runs of the same month */
+	private Partition currentPartition;
+
+	/** Reused to find the month of each event */
+	private final Calendar calendar = GregorianCalendar.getInstance();
+
+	/** Reused to write the date and time of each event */
+	private final Timestamp time = new Timestamp(0);
+
+	/** Rows of one month table, with the insert statement prepared once and the inserts not yet sent */
+	private static class Partition {
+		final int key;
+		final String month;
+		final String monthMMM;
+		final String yearYYYY;
+		PreparedStatement insert;
+		int pendingInserts = 0;
+
+		/** Rows of the batch not yet sent, kept to find the one the database rejects */
+		EventBuffer rows;
+
+		Partition(int key) {
+			this.key = key;
+			monthMMM = MonthPartitions.MONTHS[key % 12];
+			yearYYYY = String.valueOf(key / 12);
+			month = monthMMM + yearYYYY;
+		}
+	}
+
+	public PrintingDetailsWriter(Connection connection, String schema, SqlDialect dialect, int batchSize) throws SQLException {
+		this(connection, schema, dialect, batchSize,
+				new PrinterCostCache(connection, schema, PrinterCostCache.DEFAULT_REFRESH_MILLIS));
+	}
+
+	public PrintingDetailsWriter(Connection connection, String schema, SqlDialect dialect, int batchSize,
+			PrinterCostCache costs) throws SQLException {
+		this(connection, schema, dialect, batchSize, costs, null);
+	}
+
+	public PrintingDetailsWriter(Connection connection, String schema, SqlDialect dialect, int batchSize,
+			PrinterCostCache costs, BulkMonthLoader bulk) throws SQLException {
+		this(connection, schema, dialect, batchSize, costs, bulk, new MonthPartitions(connection, schema));
+	}
+
+	/** Writer sharing the costs and month tables with other writers, each with its own connection */
+	PrintingDetailsWriter(Connection connection, String schema, SqlDialect dialect, int batchSize,
+			PrinterCostCache costs, BulkMonthLoader bulk, MonthPartitions partitions) throws SQLException {
+		this.connection = connection;
+		this.schema = schema;
+		this.dialect = dialect;
+		this.batchSize = batchSize < 1 ? 1 : batchSize;
+		this.costs = costs;
+		this.bulk = bulk;
+		this.partitions = partitions;
+	}
+
+	/** Rows rejected by the database are written to the quarantine instead of failing the run */
+	void setQuarantine(Quarantine quarantine) {
+		this.quarantine = quarantine;
+	}
+
+	/** Counts the events written into the report */
+	void setReport(UsageReport report) {
+		this.report = report;
+	}
+
+	/** Roll number as it is stored, the column only holds 10 characters */
+	static String rollNo(String regNo) {
+		return regNo.length() >= 11 ? regNo.substring(0,10) : regNo;
+	}
+
+	/** Document name as it is stored, the column only holds 99 characters */
+	static String fileName(String documentName) {
+		return documentName.length() >= 100 ? documentName.substring(0,99) : documentName;
+	}
+
+	/** Printer name as it is stored, the column only holds 24 characters */
+	static String printer(String printerName) {
+		return printerName.length() > 24 ? printerName.substring(0,24) : printerName;
+	}
+
+	/** Creates the month tables of the dates to be loaded, so that no table has to be created while loading */
+	public void createMonths(Date startDate, Date endDate) throws SQLException {
+		partitions.createMonths(startDate, endDate);
+	}
+
+	/**
+	 * Used to insert the values for student printout details into database
+	 * HOW TO: Get print date to find the *****temporary***** month table, which is created if it is not known.
+	 * The charges of each entry inserted in month table are added to the ledger of the student for that month,
+	 * which is written to CSGLED by flush().
+	 * The details are not changed, the values are cut to the size of their columns as they are bound.
+	 * @param details
+	 */
+	public void write(PrintingDetails details) throws SQLException, IOException {
+		long printTime = details.printTime.getTime();
+		Partition partition = partition(printTime);
+		// The cost is looked up on the whole printer name, as it is in the printer table
+		float charges = costs.charges(details.printerName, details.pages);
+		if(bulk == null && quarantine != null)
+			rows(partition).add(details, charges);
+		write(partition, printTime, details.regNo, details.printerName, details.pages, charges, details.bannerID,
+				details.documentName);
+	}
+
+	/** Same as write(details) for an event of a buffer, which is read from its columns */
+	public void write(EventBuffer events, int row) throws SQLException, IOException {
+		long printTime = events.time(row);
+		Partition partition = partition(printTime);
+		String printerName = events.printerName(row);
+		float charges = costs.charges(printerName, events.pages(row));
+		if(bulk == null && quarantine != null)
+			rows(partition).add(events, row, charges);
+		write(partition, printTime, events.regNo(row), printerName, events.pages(row), charges, events.bannerID(row),
+				events.documentName(row));
+	}
+
+	/** Inserts or stages the month table row and adds the charges to the ledger and the report */
+	private void write(Partition partition, long printTime, String regNo, String printerName, int pages, float charges,
+			int bannerID, String documentName) throws SQLException, IOException {
+		regNo = rollNo(regNo);
+		printerName = printer(printerName);
+		if(bulk != null){
+			time.setTime(printTime);
+			String date = time.toString();
+			bulk.stage(partition.month, regNo, date.substring(0,10), date.substring(11), pages,
+					printerName, charges, bannerID, fileName(documentName));
+		}else{
+			bind(partition.insert, regNo, printTime, pages, printerName, charges, bannerID, fileName(documentName));
+			partition.insert.addBatch();
+		}
+
+		int mon = (partition.key / 12) * 100 + partition.key % 12;
+		ledger.add(regNo, partition.monthMMM, partition.yearYYYY, mon, charges);
+		if(report != null)
+			report.add(printerName, regNo, printTime, pages, charges);
+		// Each month table is sent full batches of its own rows
+		if(bulk == null && ++partition.pendingInserts >= batchSize)
+			flushInserts(partition);
+	}
+
+	/** Rows of the batch of a month table, kept to find the one the database rejects */
+	private EventBuffer rows(Partition partition) {
+		if(partition.rows == null)
+			partition.rows = new EventBuffer(batchSize);
+		return partition.rows;
+	}
+
+	private void bind(PreparedStatement insertStatement, String regNo, long printTime, int pages, String printerName,
+			float charges, int bannerID, String documentName) throws SQLException {
+		time.setTime(printTime);
+		String date = time.toString();
+		insertStatement.setString(1, regNo);
+		insertStatement.setString(2, date.substring(0,10));
+		insertStatement.setString(3, date.substring(11));
+		insertStatement.setFloat(4,pages);
+		insertStatement.setString(5, printerName);
+		insertStatement.setFloat(6, charges);
+		insertStatement.setFloat(7, bannerID);
+		insertStatement.setString(8, documentName);
+	}
+
+	/** Partition of the month of a print time */
+	private Partition partition(long printTime) throws SQLException {
+		calendar.setTimeInMillis(printTime);
+		return partition(calendar.get(Calendar.YEAR) * 12 + calendar.get(Calendar.MONTH));
+	}
+
+	/** Partition of a month, making sure its table exists the first time the month is seen in the run */
+	private Partition partition(int key) throws SQLException {
+		if(currentPartition != null && currentPartition.key == key)
+			return currentPartition;
+		Partition partition = monthPartitions.get(key);
+		if(partition == null){
+			partition = new Partition(key);
+			partitions.ensure(partition.month);
+			if(bulk == null)
+				partition.insert = connection.prepareStatement("INSERT INTO "+schema+".TEMP"+partition.month
+						+" (rollno,cdate,A2,pages,A11,charges,line,filename) VALUES (?,?,?,?,?,?,?,?)");
+			monthPartitions.put(key, partition);
+		}
+		currentPartition = partition;
+		return partition;
+	}
+
+	/** Sends the batched inserts of one month table to the database */
+	private void flushInserts(Partition partition) throws SQLException, IOException {
+		if(partition.pendingInserts == 0)
+			return;
+		long start = System.nanoTime();
+		if(quarantine == null){
+			partition.insert.executeBatch();
+		}else{
+			// The rows of the batch that did get in are undone if it fails
+			Savepoint beforeBatch = connection.setSavepoint();
+			try {
+				partition.insert.executeBatch();
+			} catch (SQLException e) {
+				connection.rollback(beforeBatch);
+				partition.insert.clearBatch();
+				insertOneByOne(partition);
+			}
+			partition.rows.clear();
+		}
+		partition.pendingInserts = 0;
+		IngestMetrics.get().insertBatch.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Inserts the rows of a rejected batch one at a time, quarantining the ones that fail and taking back their charges.
+	 * The events are quarantined as they were read, so that they are loaded and charged the same way when replayed.
+	 */
+	private void insertOneByOne(Partition partition) throws SQLException, IOException {
+		EventBuffer rows = partition.rows;
+		for(int row = 0; row < rows.size(); row++){
+			long printTime = rows.time(row);
+			String regNo = rollNo(rows.regNo(row));
+			String printerName = printer(rows.printerName(row));
+			float charges = rows.charges(row);
+			bind(partition.insert, regNo, printTime, rows.pages(row), printerName, charges, rows.bannerID(row),
+					fileName(rows.documentName(row)));
+			try {
+				partition.insert.executeUpdate();
+			} catch (SQLException e) {
+				quarantine.write(rows.get(row), "Rejected by database: "+e.getMessage());
+				ledger.remove(regNo, partition.monthMMM, partition.yearYYYY, charges);
+				if(report != null)
+					report.remove(printerName, regNo, printTime, rows.pages(row), charges);
+			}
+		}
+	}
+
+	/** Sends all batched month table inserts to the database */
+	private void flushInserts() throws SQLException, IOException {
+		for(Partition partition : monthPartitions.values())
+			flushInserts(partition);
+	}
+
+	/**
+	 * Sends the batched month table inserts, or loads the staged ones, and the summed charges to the database.
+	 * Must be called before commit.
+	 */
+	public void flush() throws SQLException, IOException {
+		flushInserts();
+		if(bulk != null)
+			bulk.load(connection, schema);
+		long start = System.nanoTime();
+		ledger.write(connection, schema, dialect);
+		ledger.clear();
+		IngestMetrics.get().ledger.record(System.nanoTime() - start);
+	}
+
+	/** Closes all prepared statements. Batched inserts, staged rows and charges that were not flushed are discarded. */
+	public void close() throws SQLException {
+		costs.logStatistics();
+		if(bulk != null)
+			bulk.close();
+		for(Partition partition : monthPartitions.values())
+			if(partition.insert != null)
+				partition.insert.close();
+		monthPartitions.clear();
+		currentPartition = null;
+	}
+}
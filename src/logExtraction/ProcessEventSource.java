@@ -0,0 +1,137 @@
+/*
+ * Event source that runs the extracting process and reads the CSV from its standard output.
+ * On Windows this is PowerShell running Get-WinEvent | ConvertTo-csv. Any other command that
+ * writes an export in the same format can be used instead, such as scripts/canned-export.sh on Linux.
+ * The process is killed if it has not finished within the timeout, or when the export is closed
+ * before it was read to the end, as the process would otherwise wait on its full output forever.
+ */
+
+package logExtraction;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/** The ProcessEventSource class */
+public class ProcessEventSource implements EventSource {
+
+	static Logger slogger = Logger.getLogger(ProcessEventSource.class);
+
+	/** Default time the export may take */
+	static final long DEFAULT_TIMEOUT_MILLIS = 60 * 60 * 1000L;
+
+	/** Command with {start} and {end} standing for the dates, or null for PowerShell */
+	private final String commandTemplate;
+	private final long timeoutMillis;
+
+	private Process process;
+	private CsvEventReader reader;
+	private ScheduledExecutorService watchdog;
+	private ScheduledFuture<?> kill;
+	private volatile boolean timedOut = false;
+	private long startedAt;
+
+	/**
+	 * @param commandTemplate command to run, {start} and {end} are replaced by the dates as yyyy-MM-dd.
+	 * Null runs Get-WinEvent through PowerShell.
+	 * @param timeoutMillis time after which the process is killed
+	 */
+	public ProcessEventSource(String commandTemplate, long timeoutMillis) {
+		this.commandTemplate = commandTemplate;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Command to get csv from windows
+	 * get-winevent -FilterHashTable @{ logname = 'Microsoft-Windows-PrintService/Operational';StartTime = '<start> 12:00:01 AM'; EndTime = '<end> 23:59:59'; ID = 307 ;} | ConvertTo-csv
+	 * The output encoding is set to UTF-8 so that the document names can be decoded.
+	 */
+	static List<String> powerShellCommand(Date startDate, Date endDate) {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.setTime(startDate);
+		String givenDate = cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR);
+		cal.setTime(endDate);
+		String beforeDay = cal.get(Calendar.DATE)+"/"+(cal.get(Calendar.MONTH)+1)+"/"+cal.get(Calendar.YEAR);
+		List<String> command = new ArrayList<String>();
+		command.add("powershell");
+		command.add("-NonInteractive");
+		command.add("-Command");
+		command.add("[Console]::OutputEncoding = [Text.Encoding]::UTF8; "
+				+"get-winevent -FilterHashTable @{ logname = 'Microsoft-Windows-PrintService/Operational';StartTime = '"+givenDate
+				+" 12:00:01 AM'; EndTime = '"+beforeDay+" 23:59:59 ';  ID = 307 ;} | ConvertTo-csv");
+		return command;
+	}
+
+	/** Splits the template on spaces and fills in the dates */
+	List<String> command(Date startDate, Date endDate) {
+		if (commandTemplate == null)
+			return powerShellCommand(startDate, endDate);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		List<String> command = new ArrayList<String>();
+		for (String part : commandTemplate.trim().split("\\s+"))
+			command.add(part.replace("{start}", format.format(startDate)).replace("{end}", format.format(endDate)));
+		return command;
+	}
+
+	public CsvEventReader open(Date startDate, Date endDate) throws IOException {
+		List<String> command = command(startDate, endDate);
+		slogger.info("Running "+command);
+		ProcessBuilder builder = new ProcessBuilder(command);
+		// Errors of the extractor go to our console, they must not block the process
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		startedAt = System.nanoTime();
+		process = builder.start();
+		process.getOutputStream().close();
+		watchdog = Executors.newSingleThreadScheduledExecutor();
+		kill = watchdog.schedule(new Runnable() {
+			public void run() {
+				slogger.fatal("Extractor did not finish in "+timeoutMillis/1000+" seconds. Killing it.");
+				timedOut = true;
+				process.destroy();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		reader = new CsvEventReader(new InputStreamReader(process.getInputStream(), "UTF-8"),
+				CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN,
+				CreatePrinterLogCSV.MACHINE_NAME_COLUMN);
+		return reader;
+	}
+
+	public void close() throws IOException {
+		if (process == null)
+			return;
+		try {
+			if (!reader.isFinished()) {
+				slogger.warn("Export was not read to the end. Stopping the extractor.");
+				reader.close();
+				process.destroy();
+				process.waitFor();
+				return;
+			}
+			int exitValue = process.waitFor();
+			if (timedOut)
+				throw new IOException("Extractor timed out after "+timeoutMillis/1000+" seconds");
+			if (exitValue != 0)
+				throw new IOException("Extractor exited with "+exitValue);
+		} catch (InterruptedException e) {
+			process.destroy();
+			throw new IOException("Interrupted while waiting for extractor", e);
+		} finally {
+			IngestMetrics.get().export.record(System.nanoTime() - startedAt);
+			kill.cancel(false);
+			watchdog.shutdownNow();
+			reader.close();
+			process = null;
+		}
+	}
+}
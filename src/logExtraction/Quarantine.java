@@ -0,0 +1,145 @@
+/*
+ * Keeps the events that could not be parsed or loaded, so that the rest of the run can be committed.
+ * They are written in the format of the Get-WinEvent export, with a Reason column added at the end,
+ * so that once the file has been fixed it can be loaded again like any export with replayQuarantine.
+ * Events that were parsed but rejected by the database are written back as a message rebuilt from
+ * their details, the client address and the port of the original message are not kept.
+ *
+ * The file is written under a temporary name and only kept if the run is committed. When a run is
+ * rolled back its events are read again by the next run, which quarantines them again if they still fail.
+ */
+
+package logExtraction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The Quarantine class */
+public class Quarantine {
+
+	static Logger slogger = Logger.getLogger(Quarantine.class);
+
+	/** Columns of the export up to TimeCreated, followed by the reason */
+	private static final String HEADER = "\"Message\",\"Id\",\"Version\",\"Qualifiers\",\"Level\",\"Task\",\"Opcode\",\"Keywords\","
+			+"\"RecordId\",\"ProviderName\",\"ProviderId\",\"LogName\",\"ProcessId\",\"ThreadId\",\"MachineName\",\"UserId\","
+			+"\"TimeCreated\",\"Reason\"";
+
+	private final File directory;
+	private final String name;
+
+	private File temporary;
+	private Writer out;
+	private long count = 0;
+	private final List<PrintingDetails> rejected = new ArrayList<PrintingDetails>();
+	private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * @param name of the file, without extension, the time of the run is added to it
+	 */
+	public Quarantine(File directory, String name) {
+		this.directory = directory;
+		this.name = name.replaceAll("[^A-Za-z0-9_.-]", "_") + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date());
+	}
+
+	/** Writes an event that could not be parsed, as it was in the export */
+	public synchronized void write(CharSequence message, CharSequence timeCreated, CharSequence machineName, String reason)
+			throws IOException {
+		if (out == null)
+			open();
+		Writer w = out;
+		field(w, message);
+		for (int column = 0; column < CreatePrinterLogCSV.MACHINE_NAME_COLUMN; column++)
+			w.write(',');
+		field(w, machineName);
+		w.write(',');
+		w.write(',');
+		field(w, timeCreated);
+		w.write(',');
+		field(w, reason);
+		w.write("\r\n");
+		count++;
+		IngestMetrics.get().quarantined.incrementAndGet();
+	}
+
+	/** Writes an event that was parsed but could not be loaded, with the message rebuilt from its details */
+	public synchronized void write(PrintingDetails details, String reason) throws IOException {
+		// The document name keeps the space that followed the comma
+		String message = "Document "+details.bannerID+","+details.documentName+" owned by "+details.regNo
+				+" on unknown was printed on "+details.printerName+" through port unknown.  Size in bytes: 0. Pages printed: "
+				+details.pages+". No user action is required.";
+		write(message, timeFormat.format(details.printTime), details.server == null ? "" : details.server, reason);
+		rejected.add(details);
+	}
+
+	/** Events that were parsed but could not be loaded, which must not be marked as loaded */
+	public synchronized List<PrintingDetails> getRejected() {
+		return new ArrayList<PrintingDetails>(rejected);
+	}
+
+	private void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory "+directory);
+		temporary = new File(directory, name+".csv.tmp");
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8"));
+		out.write(HEADER);
+		out.write("\r\n");
+	}
+
+	private static void field(Writer w, CharSequence value) throws IOException {
+		w.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"')
+				w.write('"');
+			w.write(c);
+		}
+		w.write('"');
+	}
+
+	/** Number of events quarantined in this run */
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/**
+	 * Keeps the file, to be done once the run is committed
+	 * @return the file, or null if nothing was quarantined
+	 */
+	public synchronized File commit() throws IOException {
+		if (out == null)
+			return null;
+		out.close();
+		out = null;
+		File file = new File(directory, name+".csv");
+		if (!temporary.renameTo(file))
+			throw new IOException("Cannot rename "+temporary+" to "+file);
+		slogger.warn("Quarantined "+count+" events in "+file+". Load them with replayQuarantine once they are fixed.");
+		return file;
+	}
+
+	/** Drops the file, for when the run is rolled back */
+	public synchronized void abort() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			slogger.warn("Cannot close quarantine file "+temporary+". "+e.getMessage());
+		}
+		out = null;
+		if (!temporary.delete())
+			slogger.warn("Cannot delete quarantine file "+temporary);
+	}
+}
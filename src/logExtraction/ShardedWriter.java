@@ -0,0 +1,264 @@
+/*
+ * Writes the printing details through several connections at once.
+ * Events are divided into shards on the hash of the roll number, each shard having its own thread,
+ * connection, transaction and PrintingDetailsWriter. A student is always written by the same shard,
+ * so no two shards ever update the same csgled entry and their transactions do not wait on each other.
+ * The events of a shard are copied into an EventBuffer and handed to its thread CHUNK_SIZE at a time.
+ *
+ * The run ends with every shard flushing its inserts and ledger. Only when all of them succeeded are
+ * the shards committed, one after the other; if a commit fails the shards after it are rolled back.
+ * The commit is therefore not atomic: the shards committed before the failure keep their rows and
+ * charges while the watermark is rolled back, so the next run reads their events again. Only the
+ * dedup index keeps them from being loaded and charged twice, which is why CreatePrinterLogCSV
+ * refuses to start with more than one writer when no dedup index is kept.
+ * The month tables are created and the costs table is read on connections of their own with auto
+ * commit, so that a table created for one shard can be seen by all the others straight away.
+ */
+
+package logExtraction;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The ShardedWriter class */
+public class ShardedWriter {
+
+	static Logger slogger = Logger.getLogger(ShardedWriter.class);
+
+	/** Events handed to a shard thread at a time */
+	private static final int CHUNK_SIZE = 256;
+
+	/** Chunks waiting for each shard, so that a slow shard holds up the reading instead of filling memory */
+	private static final int CHUNKS_IN_FLIGHT = 4;
+
+	private final ConnectionPool pool;
+
+	/**
+	 * Connections of the month tables and of the costs. The month tables and the costs are each read
+	 * under their own lock by whichever shard needs them, so they cannot share a connection.
+	 */
+	private final Connection metadata;
+	private Connection costsConnection;
+	private final Shard[] shards;
+
+	/** One connection, transaction and writer */
+	private static class Shard {
+		final int number;
+		final Connection connection;
+		final PrintingDetailsWriter writer;
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		final Semaphore inFlight = new Semaphore(CHUNKS_IN_FLIGHT);
+		EventBuffer pending = new EventBuffer(CHUNK_SIZE);
+		volatile Exception failure;
+
+		Shard(int number, Connection connection, PrintingDetailsWriter writer) {
+			this.number = number;
+			this.connection = connection;
+			this.writer = writer;
+		}
+	}
+
+	/**
+	 * Takes the connections of the shards from the pool.
+	 * @param shardCount number of connections written through at once
+	 */
+	public ShardedWriter(ConnectionPool pool, String schema, SqlDialect dialect, int batchSize, int shardCount,
+			long costRefreshMillis) throws SQLException {
+		this.pool = pool;
+		this.shards = new Shard[shardCount];
+		metadata = pool.borrow();
+		try {
+			metadata.setAutoCommit(true);
+			MonthPartitions partitions = new MonthPartitions(metadata, schema);
+			costsConnection = pool.borrow();
+			costsConnection.setAutoCommit(true);
+			PrinterCostCache costs = new PrinterCostCache(costsConnection, schema, costRefreshMillis);
+			for (int i = 0; i < shardCount; i++) {
+				Connection connection = pool.borrow();
+				shards[i] = new Shard(i, connection,
+						new PrintingDetailsWriter(connection, schema, dialect, batchSize, costs, null, partitions));
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** Rows rejected by the database are written to the quarantine instead of failing the shard */
+	public void setQuarantine(Quarantine quarantine) {
+		for (Shard shard : shards)
+			shard.writer.setQuarantine(quarantine);
+	}
+
+	/** Counts the events of each shard into its own report, as the shards write on threads of their own */
+	public void setReports(UsageReport[] reports) {
+		for (Shard shard : shards)
+			shard.writer.setReport(reports[shard.number]);
+	}
+
+	/** Shard of a student, from the roll number as it is stored */
+	static int shardOf(String regNo, int shardCount) {
+		return (PrintingDetailsWriter.rollNo(regNo).hashCode() & Integer.MAX_VALUE) % shardCount;
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/** Creates the month tables of the dates to be loaded, they are committed straight away */
+	public void createMonths(Date startDate, Date endDate) throws SQLException {
+		shards[0].writer.createMonths(startDate, endDate);
+	}
+
+	/** Hands the event to the shard of its student, waiting if that shard is behind */
+	public void write(PrintingDetails details) throws SQLException, IOException, InterruptedException {
+		Shard shard = shards[shardOf(details.regNo, shards.length)];
+		if (shard.failure != null)
+			rethrow(shard.failure);
+		shard.pending.add(details);
+		if (shard.pending.size() >= CHUNK_SIZE)
+			submit(shard);
+	}
+
+	/** Same as write(details) for an event of a buffer, which is copied into the chunk of its shard */
+	public void write(EventBuffer events, int row) throws SQLException, IOException, InterruptedException {
+		Shard shard = shards[shardOf(events.regNo(row), shards.length)];
+		if (shard.failure != null)
+			rethrow(shard.failure);
+		shard.pending.add(events, row, events.charges(row));
+		if (shard.pending.size() >= CHUNK_SIZE)
+			submit(shard);
+	}
+
+	private void submit(final Shard shard) throws InterruptedException {
+		if (shard.pending.size() == 0)
+			return;
+		final EventBuffer chunk = shard.pending;
+		shard.pending = new EventBuffer(CHUNK_SIZE);
+		shard.inFlight.acquire();
+		shard.thread.execute(new Runnable() {
+			public void run() {
+				try {
+					if (shard.failure == null) {
+						for (int row = 0; row < chunk.size(); row++)
+							shard.writer.write(chunk, row);
+					}
+				} catch (Exception e) {
+					slogger.fatal("Shard "+shard.number+" failed. "+e.getMessage());
+					shard.failure = e;
+				} finally {
+					shard.inFlight.release();
+				}
+			}
+		});
+	}
+
+	/** Writes everything handed to the shards and their ledgers, waiting until all of them are done */
+	public void flush() throws SQLException, IOException, InterruptedException {
+		List<Future<Void>> flushed = new ArrayList<Future<Void>>();
+		for (final Shard shard : shards) {
+			submit(shard);
+			flushed.add(shard.thread.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					if (shard.failure != null)
+						throw shard.failure;
+					shard.writer.flush();
+					return null;
+				}
+			}));
+		}
+		Exception failure = null;
+		for (Future<Void> future : flushed) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null)
+					failure = (Exception) e.getCause();
+			}
+		}
+		if (failure != null)
+			rethrow(failure);
+	}
+
+	/**
+	 * Commits the shards one after the other, stopping at the first that fails and rolling back the rest.
+	 * @return for each shard whether it was committed
+	 */
+	public boolean[] commit() {
+		boolean[] committed = new boolean[shards.length];
+		boolean failed = false;
+		for (Shard shard : shards) {
+			try {
+				if (failed) {
+					shard.connection.rollback();
+					continue;
+				}
+				long start = System.nanoTime();
+				shard.connection.commit();
+				IngestMetrics.get().commit.record(System.nanoTime() - start);
+				committed[shard.number] = true;
+			} catch (SQLException e) {
+				slogger.fatal("Cannot commit shard "+shard.number+", the shards after it are rolled back. "+e.getMessage());
+				failed = true;
+			}
+		}
+		return committed;
+	}
+
+	/** Rolls back every shard */
+	public void rollback() {
+		for (Shard shard : shards) {
+			try {
+				shard.connection.rollback();
+			} catch (SQLException e) {
+				slogger.warn("Cannot roll back shard "+shard.number+". "+e.getMessage());
+			}
+		}
+	}
+
+	/** Stops the shard threads and gives the connections back to the pool */
+	public void close() {
+		for (Shard shard : shards) {
+			if (shard == null)
+				continue;
+			shard.thread.shutdown();
+			try {
+				shard.thread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				shard.writer.close();
+			} catch (InterruptedException e) {
+				shard.thread.shutdownNow();
+			} catch (SQLException e) {
+				slogger.warn("Cannot close statements of shard "+shard.number+". "+e.getMessage());
+			}
+			pool.release(shard.connection);
+		}
+		pool.release(metadata);
+		if (costsConnection != null)
+			pool.release(costsConnection);
+	}
+
+	private static void rethrow(Exception e) throws SQLException, IOException {
+		if (e instanceof SQLException)
+			throw (SQLException) e;
+		if (e instanceof IOException)
+			throw (IOException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		throw new IllegalStateException(e);
+	}
+}
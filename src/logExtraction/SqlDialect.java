@@ -0,0 +1,75 @@
+/*
+ * SQL that differs between the databases given by the db property of printerLog.properties.
+ */
+
+package logExtraction;
+
+/** The SqlDialect enum */
+public enum SqlDialect {
+	MSSQL, MYSQL, H2;
+
+	/** Returns the dialect for the value of the db property. MS SQL is assumed when it is not known. */
+	public static SqlDialect forName(String db) {
+		if (db != null) {
+			for (SqlDialect dialect : values())
+				if (dialect.name().equalsIgnoreCase(db.trim()))
+					return dialect;
+		}
+		return MSSQL;
+	}
+
+	/**
+	 * Statement that adds charges to the csgled entry of a student for a month, creating the entry if required.
+	 * Parameters are rollno, mo, charges, remarks and mon.
+	 * @return the statement, or null when the database has no MERGE and an update followed by an insert must be used
+	 */
+	public String ledgerMerge(String schema) {
+		String merge = " USING (VALUES (?, ?, ?, ?, ?)) AS s (rollno, mo, charges, remarks, mon)"
+				+" ON t.rollno = s.rollno AND t.mo = s.mo"
+				+" WHEN MATCHED THEN UPDATE SET charges = t.charges + s.charges"
+				+" WHEN NOT MATCHED THEN INSERT (rollno, remarks, drcr, charges, mon, mo)"
+				+" VALUES (s.rollno, s.remarks, 'dr', s.charges, s.mon, s.mo)";
+		switch (this) {
+		case MSSQL:
+			// HOLDLOCK stops two writers from both inserting an entry for the same student
+			return "MERGE INTO "+schema+".csgled WITH (HOLDLOCK) AS t"+merge+";";
+		case H2:
+			return "MERGE INTO "+schema+".csgled AS t"+merge;
+		default:
+			return null;
+		}
+	}
+
+	/** Encoding of the staging files loaded by bulkLoad() */
+	public String bulkCharset() {
+		// BULK INSERT of SQL Server 2008 cannot read UTF-8, so the files are written as wide characters
+		return this == MSSQL ? "UTF-16LE" : "UTF-8";
+	}
+
+	/** End of each row of the staging files, BULK INSERT takes \n to mean \r\n */
+	public String bulkRowTerminator() {
+		return this == MSSQL ? "\r\n" : "\n";
+	}
+
+	/**
+	 * Statement loading a tab separated staging file into a TEMP month table in one go.
+	 * The columns of the file are rollno, cdate, A2, pages, A11, charges, line and filename.
+	 * @param path of the file as the database server or, for MySQL, the client sees it
+	 */
+	public String bulkLoad(String schema, String table, String path) {
+		String columns = "rollno,cdate,A2,pages,A11,charges,line,filename";
+		switch (this) {
+		case MSSQL:
+			return "BULK INSERT "+schema+"."+table+" FROM '"+path.replace("'", "''")+"'"
+					+" WITH (DATAFILETYPE = 'widechar', FIELDTERMINATOR = '\\t', ROWTERMINATOR = '\\n', TABLOCK)";
+		case MYSQL:
+			// LOCAL sends the file from this machine, the connection needs allowLoadLocalInfile=true
+			return "LOAD DATA LOCAL INFILE '"+path.replace("\\", "\\\\").replace("'", "\\'")+"' INTO TABLE "+schema+"."+table
+					+" CHARACTER SET utf8 FIELDS TERMINATED BY '\\t' ESCAPED BY '' LINES TERMINATED BY '\\n' ("+columns+")";
+		default:
+			// CSVREAD splits the column names on the field separator as well
+			return "INSERT INTO "+schema+"."+table+" ("+columns+") SELECT * FROM CSVREAD('"+path.replace("'", "''")
+					+"', REPLACE('"+columns+"', ',', CHAR(9)), 'charset=UTF-8 fieldSeparator=' || CHAR(9) || ' fieldDelimiter= escape=')";
+		}
+	}
+}
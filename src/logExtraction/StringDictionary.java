@@ -0,0 +1,58 @@
+/*
+ * Numbers the distinct strings of a column, such as printer names or roll numbers, in the order
+ * they are first seen, so that a value repeated on many events is stored once and referred to by its number.
+ */
+
+package logExtraction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The StringDictionary class */
+public class StringDictionary {
+
+	private final Map<String, Integer> codes = new HashMap<String, Integer>();
+	private final List<String> values = new ArrayList<String>();
+
+	/** Number of the string, -1 for null */
+	public int code(String value) {
+		if (value == null)
+			return -1;
+		Integer code = codes.get(value);
+		if (code == null) {
+			code = values.size();
+			codes.put(value, code);
+			values.add(value);
+		}
+		return code;
+	}
+
+	/** String of the number, null for -1 */
+	public String get(int code) {
+		return code < 0 ? null : values.get(code);
+	}
+
+	/** Adds the string under the next number, as when the dictionary is read back */
+	public void add(String value) {
+		codes.put(value, values.size());
+		values.add(value);
+	}
+
+	/** Number of strings, which is also the number the next new string gets */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Estimate of the bytes held, for a 64 bit JVM with compressed pointers: each string with its
+	 * characters, its entry in the map with the boxed number, and its slot in the list and in the table.
+	 */
+	public long memoryUsed() {
+		long bytes = 0;
+		for (String value : values)
+			bytes += 40 + 2L * value.length() + 32 + 16 + 4 + 8;
+		return bytes;
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Usage reports built while the events are loaded, so that the reports listed in printerSQL.sql
+ * and the usage of each printer and of the heaviest users do not need a scan of the month tables.
+ *
+ * Printers and roll numbers are numbered with a StringDictionary and days with an IntDictionary,
+ * and the totals of each are kept in plain arrays indexed by that number, so an event adds to a
+ * few array elements and nothing is allocated for it. Each writer has its own report, as the
+ * shards of a run write on threads of their own, and the reports are merged when the run ends.
+ *
+ * The reports are written as CSV files or as one JSON file when the run is committed.
+ */
+
+package logExtraction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+/** The UsageReport class. An instance must only be used by one thread. */
+public class UsageReport {
+
+	static Logger slogger = Logger.getLogger(UsageReport.class);
+
+	/** Users listed in the top users report */
+	static final int DEFAULT_TOP_USERS = 20;
+
+	private final StringDictionary printers = new StringDictionary();
+	private final StringDictionary users = new StringDictionary();
+	private final IntDictionary days = new IntDictionary();
+
+	private long[] printerPages = new long[16];
+	private long[] printerEvents = new long[16];
+	private double[] printerCharges = new double[16];
+
+	private long[] userPages = new long[1024];
+	private long[] userEvents = new long[1024];
+	private double[] userCharges = new double[1024];
+
+	private long[] dayPages = new long[32];
+	private long[] dayEvents = new long[32];
+
+	private long events = 0;
+	private long pages = 0;
+	private double charges = 0;
+
+	/** Event with the most pages */
+	private int maxPages = -1;
+	private String maxPagesUser;
+	private String maxPagesPrinter;
+	private Timestamp maxPagesTime;
+
+	private final Calendar calendar = new GregorianCalendar();
+
+	/** Counts an event that is being loaded, with the printer and roll number as they are stored */
+	public void add(String printerName, String regNo, long printTime, int eventPages, double charge) {
+		count(printerName, regNo, dayOf(printTime), eventPages, charge, 1);
+		if (eventPages > maxPages) {
+			maxPages = eventPages;
+			maxPagesUser = regNo;
+			maxPagesPrinter = printerName;
+			maxPagesTime = new Timestamp(printTime);
+		}
+	}
+
+	/** Takes back an event that was counted but not loaded, the largest event stays as it was */
+	public void remove(String printerName, String regNo, long printTime, int eventPages, double charge) {
+		count(printerName, regNo, dayOf(printTime), -eventPages, -charge, -1);
+	}
+
+	/** Day of the time as yyyyMMdd */
+	private int dayOf(long time) {
+		calendar.setTimeInMillis(time);
+		return calendar.get(Calendar.YEAR) * 10000 + (calendar.get(Calendar.MONTH) + 1) * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+	}
+
+	private void count(String printer, String user, int day, long eventPages, double charge, int eventCount) {
+		int p = printer(printers.code(printer));
+		printerPages[p] += eventPages;
+		printerEvents[p] += eventCount;
+		printerCharges[p] += charge;
+
+		int u = user(users.code(user));
+		userPages[u] += eventPages;
+		userEvents[u] += eventCount;
+		userCharges[u] += charge;
+
+		int d = day(days.code(day));
+		dayPages[d] += eventPages;
+		dayEvents[d] += eventCount;
+
+		events += eventCount;
+		pages += eventPages;
+		charges += charge;
+	}
+
+	/** Makes room for the totals of a new printer, user or day, the numbers are given out one at a time */
+	private int printer(int p) {
+		if (p == printerPages.length) {
+			printerPages = Arrays.copyOf(printerPages, 2 * p);
+			printerEvents = Arrays.copyOf(printerEvents, 2 * p);
+			printerCharges = Arrays.copyOf(printerCharges, 2 * p);
+		}
+		return p;
+	}
+
+	private int user(int u) {
+		if (u == userPages.length) {
+			userPages = Arrays.copyOf(userPages, 2 * u);
+			userEvents = Arrays.copyOf(userEvents, 2 * u);
+			userCharges = Arrays.copyOf(userCharges, 2 * u);
+		}
+		return u;
+	}
+
+	private int day(int d) {
+		if (d == dayPages.length) {
+			dayPages = Arrays.copyOf(dayPages, 2 * d);
+			dayEvents = Arrays.copyOf(dayEvents, 2 * d);
+		}
+		return d;
+	}
+
+	/** Adds the counts of another report, such as the report of another shard */
+	public void merge(UsageReport other) {
+		for (int i = 0; i < other.printers.size(); i++) {
+			int p = printer(printers.code(other.printers.get(i)));
+			printerPages[p] += other.printerPages[i];
+			printerEvents[p] += other.printerEvents[i];
+			printerCharges[p] += other.printerCharges[i];
+		}
+		for (int i = 0; i < other.users.size(); i++) {
+			int u = user(users.code(other.users.get(i)));
+			userPages[u] += other.userPages[i];
+			userEvents[u] += other.userEvents[i];
+			userCharges[u] += other.userCharges[i];
+		}
+		for (int i = 0; i < other.days.size(); i++) {
+			int d = day(days.code(other.days.get(i)));
+			dayPages[d] += other.dayPages[i];
+			dayEvents[d] += other.dayEvents[i];
+		}
+		events += other.events;
+		pages += other.pages;
+		charges += other.charges;
+		if (other.maxPages > maxPages) {
+			maxPages = other.maxPages;
+			maxPagesUser = other.maxPagesUser;
+			maxPagesPrinter = other.maxPagesPrinter;
+			maxPagesTime = other.maxPagesTime;
+		}
+	}
+
+	public long getEvents() {
+		return events;
+	}
+
+	public long getPages() {
+		return pages;
+	}
+
+	/** Days in order */
+	private int[] sortedDays() {
+		int[] order = new int[days.size()];
+		for (int d = 0; d < order.length; d++)
+			order[d] = days.get(d);
+		Arrays.sort(order);
+		for (int i = 0; i < order.length; i++)
+			order[i] = days.code(order[i]);
+		return order;
+	}
+
+	/** Printers by name */
+	private int[] sortedPrinters() {
+		String[] names = new String[printers.size()];
+		for (int p = 0; p < names.length; p++)
+			names[p] = printers.get(p);
+		Arrays.sort(names);
+		int[] order = new int[names.length];
+		for (int i = 0; i < names.length; i++)
+			order[i] = printers.code(names[i]);
+		return order;
+	}
+
+	/** Numbers of the users with the most pages, most pages first */
+	private int[] topUsers(int count) {
+		// Min-heap of the users kept so far, the one with the fewest pages at the top
+		int[] heap = new int[Math.min(count, users.size())];
+		int size = 0;
+		for (int u = 0; u < users.size(); u++) {
+			if (size < heap.length) {
+				heap[size] = u;
+				for (int i = size++; i > 0 && userPages[heap[i]] < userPages[heap[(i - 1) / 2]]; i = (i - 1) / 2)
+					swap(heap, i, (i - 1) / 2);
+			} else if (size > 0 && userPages[u] > userPages[heap[0]]) {
+				heap[0] = u;
+				siftDown(heap, size, 0);
+			}
+		}
+		int[] top = new int[size];
+		for (int i = size - 1; i >= 0; i--) {
+			top[i] = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, size, 0);
+		}
+		return top;
+	}
+
+	private void siftDown(int[] heap, int size, int i) {
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && userPages[heap[child + 1]] < userPages[heap[child]])
+				child++;
+			if (userPages[heap[i]] <= userPages[heap[child]])
+				return;
+			swap(heap, i, child);
+			i = child;
+		}
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	/**
+	 * Writes the reports into the directory, as name-summary.csv, name-days.csv, name-printers.csv
+	 * and name-users.csv, or as name.json.
+	 * @param topUsers number of users in the users report
+	 */
+	public void write(File directory, String name, boolean json, int topUsers) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory "+directory);
+		if (json)
+			writeJson(new File(directory, name+".json"), topUsers);
+		else
+			writeCsv(directory, name, topUsers);
+		slogger.info("Usage of "+events+" events written to "+directory+" as "+name);
+	}
+
+	private static Writer open(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+	}
+
+	private static String number(double value) {
+		return String.format(Locale.ROOT, "%.2f", value);
+	}
+
+	private void writeCsv(File directory, String name, int topUsers) throws IOException {
+		Writer out = open(new File(directory, name+"-summary.csv"));
+		try {
+			out.write("events,pages,charges,maxPages,maxPagesRollNo,maxPagesPrinter,maxPagesTime\r\n");
+			out.write(events+","+pages+","+number(charges)+","+Math.max(maxPages, 0)+","+csv(maxPagesUser)+","
+					+csv(maxPagesPrinter)+","+(maxPagesTime == null ? "" : maxPagesTime.toString())+"\r\n");
+		} finally {
+			out.close();
+		}
+		out = open(new File(directory, name+"-days.csv"));
+		try {
+			out.write("day,events,pages\r\n");
+			for (int d : sortedDays())
+				out.write(days.get(d)+","+dayEvents[d]+","+dayPages[d]+"\r\n");
+		} finally {
+			out.close();
+		}
+		out = open(new File(directory, name+"-printers.csv"));
+		try {
+			out.write("printer,events,pages,charges\r\n");
+			for (int p : sortedPrinters())
+				out.write(csv(printers.get(p))+","+printerEvents[p]+","+printerPages[p]+","+number(printerCharges[p])+"\r\n");
+		} finally {
+			out.close();
+		}
+		out = open(new File(directory, name+"-users.csv"));
+		try {
+			out.write("rollno,events,pages,charges\r\n");
+			for (int u : topUsers(topUsers))
+				out.write(csv(users.get(u))+","+userEvents[u]+","+userPages[u]+","+number(userCharges[u])+"\r\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeJson(File file, int topUsers) throws IOException {
+		Writer out = open(file);
+		try {
+			out.write("{\n  \"events\": "+events+",\n  \"pages\": "+pages+",\n  \"charges\": "+number(charges)+",\n");
+			out.write("  \"maxPages\": {\"pages\": "+Math.max(maxPages, 0)+", \"rollno\": "+json(maxPagesUser)
+					+", \"printer\": "+json(maxPagesPrinter)+", \"time\": "+json(maxPagesTime == null ? null : maxPagesTime.toString())+"},\n");
+			out.write("  \"days\": [");
+			String separator = "\n";
+			for (int d : sortedDays()) {
+				out.write(separator+"    {\"day\": "+days.get(d)+", \"events\": "+dayEvents[d]+", \"pages\": "+dayPages[d]+"}");
+				separator = ",\n";
+			}
+			out.write("\n  ],\n  \"printers\": [");
+			separator = "\n";
+			for (int p : sortedPrinters()) {
+				out.write(separator+"    {\"printer\": "+json(printers.get(p))+", \"events\": "+printerEvents[p]+", \"pages\": "+printerPages[p]
+						+", \"charges\": "+number(printerCharges[p])+"}");
+				separator = ",\n";
+			}
+			out.write("\n  ],\n  \"topUsers\": [");
+			separator = "\n";
+			for (int u : topUsers(topUsers)) {
+				out.write(separator+"    {\"rollno\": "+json(users.get(u))+", \"events\": "+userEvents[u]+", \"pages\": "+userPages[u]
+						+", \"charges\": "+number(userCharges[u])+"}");
+				separator = ",\n";
+			}
+			out.write("\n  ]\n}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String csv(String value) {
+		if (value == null)
+			return "";
+		return "\""+value.replace("\"", "\"\"")+"\"";
+	}
+
+	private static String json(String value) {
+		if (value == null)
+			return "null";
+		StringBuilder s = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				s.append('\\').append(c);
+			else if (c < ' ')
+				s.append(String.format("\\u%04x", (int) c));
+			else
+				s.append(c);
+		}
+		return s.append('"').toString();
+	}
+}
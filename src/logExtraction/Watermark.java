@@ -0,0 +1,154 @@
+/*
+ * The last event loaded from a source, kept in the lastLogExtraction table.
+ * Events at or before it have already been loaded and are skipped, so a run only has to be told
+ * to start from the watermark. The new watermark is written in the same transaction as the events,
+ * so after a crash the next run carries on from the last commit without loading anything twice.
+ */
+
+package logExtraction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+/** The Watermark class */
+public class Watermark {
+
+	/** Source used when the events come from this print server */
+	static final String LOCAL_SOURCE = "local";
+
+	private final String source;
+
+	/** Last event loaded by earlier runs, null if there were none */
+	private Timestamp loadedTime;
+	private int loadedBannerID;
+
+	/** Last event seen in this run */
+	private Timestamp lastTime;
+	private int lastBannerID;
+
+	/** Number of events skipped as already loaded */
+	private long skipped = 0;
+
+	private Watermark(String source) {
+		this.source = source;
+	}
+
+	/** Reads the watermark of a source, creating the table if it does not exist yet */
+	public static Watermark load(Connection connection, String schema, String source) throws SQLException {
+		createTableIfRequired(connection, schema);
+		Watermark watermark = new Watermark(source);
+		PreparedStatement statement = connection.prepareStatement(
+				"SELECT previousLogExtraction, bannerID FROM "+schema+".lastLogExtraction WHERE source = ?");
+		try {
+			statement.setString(1, source);
+			ResultSet result = statement.executeQuery();
+			if (result.next()) {
+				watermark.loadedTime = result.getTimestamp(1);
+				watermark.loadedBannerID = result.getInt(2);
+				watermark.lastTime = watermark.loadedTime;
+				watermark.lastBannerID = watermark.loadedBannerID;
+			}
+			result.close();
+		} finally {
+			statement.close();
+		}
+		return watermark;
+	}
+
+	/** Creates the lastLogExtraction table of the schema if it does not exist yet */
+	static void createTableIfRequired(Connection connection, String schema) throws SQLException {
+		if (exists(connection, schema))
+			return;
+		Statement create = connection.createStatement();
+		try {
+			create.executeUpdate("CREATE TABLE "+schema+".lastLogExtraction ( source nvarchar(50),"
+					+" previousLogExtraction datetime, bannerID int )");
+		} catch (SQLException e) {
+			// Another run, such as a shard of a backfill, may have created it in the meantime
+			if (!exists(connection, schema))
+				throw e;
+		} finally {
+			create.close();
+		}
+	}
+
+	private static boolean exists(Connection connection, String schema) throws SQLException {
+		PreparedStatement exists = connection.prepareStatement(
+				"SELECT * FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?");
+		try {
+			exists.setString(1, schema);
+			exists.setString(2, "lastLogExtraction");
+			ResultSet result = exists.executeQuery();
+			boolean found = result.next();
+			result.close();
+			return found;
+		} finally {
+			exists.close();
+		}
+	}
+
+	/** Time of the last event loaded by earlier runs, or null if nothing has been loaded from this source */
+	public Timestamp getLoadedTime() {
+		return loadedTime;
+	}
+
+	/** Whether the event was loaded by an earlier run */
+	public boolean isLoaded(Timestamp printTime, int bannerID) {
+		if (loadedTime == null)
+			return false;
+		int compare = printTime.compareTo(loadedTime);
+		return compare < 0 || (compare == 0 && bannerID <= loadedBannerID);
+	}
+
+	/**
+	 * Checks an event of this run, moving the watermark past it if it is new.
+	 * @return false if it was already loaded and must be skipped
+	 */
+	public boolean accept(Timestamp printTime, int bannerID) {
+		if (isLoaded(printTime, bannerID)) {
+			skipped++;
+			return false;
+		}
+		// The export is not in time order, so the watermark only ever moves forward
+		if (lastTime == null || printTime.after(lastTime) || (printTime.equals(lastTime) && bannerID > lastBannerID)) {
+			lastTime = printTime;
+			lastBannerID = bannerID;
+		}
+		return true;
+	}
+
+	public long getSkipped() {
+		return skipped;
+	}
+
+	/** Writes the watermark without committing, to be committed with the events */
+	public void save(Connection connection, String schema) throws SQLException {
+		if (lastTime == null || (lastTime.equals(loadedTime) && lastBannerID == loadedBannerID))
+			return;
+		PreparedStatement update = connection.prepareStatement(
+				"UPDATE "+schema+".lastLogExtraction SET previousLogExtraction = ?, bannerID = ? WHERE source = ?");
+		try {
+			update.setTimestamp(1, lastTime);
+			update.setInt(2, lastBannerID);
+			update.setString(3, source);
+			if (update.executeUpdate() > 0)
+				return;
+		} finally {
+			update.close();
+		}
+		PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO "+schema+".lastLogExtraction (source, previousLogExtraction, bannerID) VALUES (?,?,?)");
+		try {
+			insert.setString(1, source);
+			insert.setTimestamp(2, lastTime);
+			insert.setInt(3, lastBannerID);
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Checks that DedupIndex skips events seen earlier in the same run or committed by an earlier one,
+ * that remove() takes an event back, that the month files are merged and renamed into place on
+ * commit and not before, that expired months are deleted and that the Bloom filter is made bigger
+ * and built again from the files without forgetting an event.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The DedupIndexTest class */
+public class DedupIndexTest {
+
+	static final long AUGUST = Timestamp.valueOf("2012-08-24 11:02:36").getTime();
+	static final long SEPTEMBER = Timestamp.valueOf("2012-09-03 09:15:00").getTime();
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("dedup").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	static PrintingDetails event(int bannerID, long printTime) {
+		PrintingDetails details = new PrintingDetails();
+		details.server = "10.1.34.21";
+		details.printerName = "A4-4515x";
+		details.regNo = "108109109";
+		details.documentName = "Microsoft Word - notes";
+		details.pages = 3;
+		details.bannerID = bannerID;
+		details.printTime = new Timestamp(printTime);
+		return details;
+	}
+
+	private File file(int month) {
+		return new File(directory, "dedup-"+month+".idx");
+	}
+
+	/** Time the given number of months ago, for months that must or must not be expired */
+	private static long monthsAgo(int months) {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.add(Calendar.MONTH, -months);
+		return cal.getTimeInMillis();
+	}
+
+	@Test
+	public void repeatInRun() throws IOException {
+		DedupIndex index = new DedupIndex(directory, 1000);
+		DedupIndex.Batch batch = index.begin();
+		// Enough events for the keys of the month to be sorted into several runs
+		for (int i = 0; i < 1000; i++)
+			assertTrue(batch.add(event(i, AUGUST + i)));
+		for (int i = 0; i < 1000; i += 7)
+			assertFalse(batch.add(event(i, AUGUST + i)));
+		// Same banner ID at another time or on another server is another event
+		assertTrue(batch.add(event(1, AUGUST)));
+		PrintingDetails otherServer = event(0, AUGUST);
+		otherServer.server = "10.1.34.22";
+		assertTrue(batch.add(otherServer));
+		assertEquals(143, batch.getDuplicates());
+	}
+
+	@Test
+	public void remove() throws IOException {
+		DedupIndex index = new DedupIndex(directory, 1000);
+		DedupIndex.Batch batch = index.begin();
+		for (int i = 0; i < 500; i++)
+			assertTrue(batch.add(event(i, AUGUST + i)));
+		// Events of the sorted runs and of the tail not yet sorted
+		batch.remove(event(10, AUGUST + 10));
+		batch.remove(event(499, AUGUST + 499));
+		batch.remove(event(7, SEPTEMBER));
+		assertTrue(batch.add(event(10, AUGUST + 10)));
+		assertTrue(batch.add(event(499, AUGUST + 499)));
+		assertFalse(batch.add(event(11, AUGUST + 11)));
+
+		batch.remove(event(20, AUGUST + 20));
+		batch.commit();
+		assertFalse(index.contains(DedupIndex.month(AUGUST), DedupIndex.fingerprint(event(20, AUGUST + 20))));
+		assertEquals(499 * 8, file(201208).length());
+	}
+
+	@Test
+	public void mergeAndRename() throws IOException {
+		DedupIndex index = new DedupIndex(directory, 1000);
+		DedupIndex.Batch batch = index.begin();
+		for (int i = 0; i < 100; i++)
+			batch.add(event(i, AUGUST + i));
+		batch.add(event(1, SEPTEMBER));
+		assertFalse(file(201208).exists());
+		batch.commit();
+		assertEquals(100 * 8, file(201208).length());
+		assertEquals(8, file(201209).length());
+
+		// Events of a rolled back run are not kept
+		batch = index.begin();
+		batch.add(event(500, AUGUST));
+		batch.abort();
+		batch.commit();
+		assertEquals(100 * 8, file(201208).length());
+
+		// A second run only adds its new events, the month file is replaced and no temporary file is left
+		batch = index.begin();
+		for (int i = 50; i < 150; i++)
+			assertEquals(i >= 100, batch.add(event(i, AUGUST + i)));
+		batch.commit();
+		assertEquals(150 * 8, file(201208).length());
+		assertEquals(2, directory.listFiles().length);
+
+		// The keys of the file are sorted and unique
+		DedupIndex reopened = new DedupIndex(directory, 1000);
+		for (int i = 0; i < 150; i++)
+			assertTrue(reopened.contains(201208, DedupIndex.fingerprint(event(i, AUGUST + i))));
+		assertFalse(reopened.contains(201208, DedupIndex.fingerprint(event(150, AUGUST + 150))));
+		assertFalse(reopened.begin().add(event(1, SEPTEMBER)));
+	}
+
+	@Test
+	public void retention() throws IOException {
+		long recent = monthsAgo(1);
+		long expired = monthsAgo(14);
+		DedupIndex index = new DedupIndex(directory, 1000);
+		DedupIndex.Batch batch = index.begin();
+		batch.add(event(1, recent));
+		batch.add(event(1, expired));
+		batch.commit();
+		assertTrue(file(DedupIndex.month(expired)).exists());
+		File other = new File(directory, "notes.txt");
+		assertTrue(other.createNewFile());
+
+		index = new DedupIndex(directory, 13);
+		assertFalse(file(DedupIndex.month(expired)).exists());
+		assertTrue(file(DedupIndex.month(recent)).exists());
+		assertTrue(other.exists());
+		batch = index.begin();
+		assertFalse(batch.add(event(1, recent)));
+		assertTrue(batch.add(event(1, expired)));
+	}
+
+	@Test
+	public void filterRebuild() throws IOException {
+		DedupIndex index = new DedupIndex(directory, 1000);
+		DedupIndex.Batch batch = index.begin();
+		// More events than the smallest filter holds, so it is built again from the files when they are committed
+		int events = 100000;
+		for (int i = 0; i < events; i++)
+			batch.add(event(i, (i % 2 == 0 ? AUGUST : SEPTEMBER) + i));
+		batch.commit();
+		assertEquals(events / 2 * 8, file(201208).length());
+		assertEquals(events / 2 * 8, file(201209).length());
+		for (int i = 0; i < events; i++) {
+			long printTime = (i % 2 == 0 ? AUGUST : SEPTEMBER) + i;
+			assertTrue(index.contains(DedupIndex.month(printTime), DedupIndex.fingerprint(event(i, printTime))));
+		}
+		// Events the filter mistakes for loaded ones are looked up in the month file and not skipped
+		int skipped = 0;
+		for (int i = events; i < 2 * events; i++) {
+			if (!index.begin().add(event(i, AUGUST + i)))
+				skipped++;
+		}
+		assertEquals(0, skipped);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Checks that Event307Parser gives the same values as getLogDataFromContent did before it,
+ * on the example message, on document names with the phrases of the message in them, and on
+ * every event of an export made by ExportGenerator.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.junit.Test;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The Event307ParserTest class */
+public class Event307ParserTest {
+
+	static final String DATE = "8/24/2012 11:02:36 AM";
+
+	static final String SAMPLE = "Document 1790, Microsoft Word - VIPUL_KUMAR_ECE owned by 108109109 on \\\\10.1.34.21 was printed on"
+			+ " A4-4515x through port 10.0.0.43_2.  Size in bytes: 201625. Pages printed: 3. No user action is required.";
+
+	/** getLogDataFromContent and stripNonPrintable as they were before Event307Parser */
+	@SuppressWarnings("deprecation")
+	static PrintingDetails baseline(String content, String date) {
+		content = stripNonPrintable(content).trim();
+		date = stripNonPrintable(date);
+		PrintingDetails temp = new PrintingDetails();
+		String ownedBy = "owned by ";
+		String wasPrintedOn = "was printed on ";
+		String pagesPrinted = "Pages printed: ";
+		String banner = content.substring("Document ".length(), content.indexOf(","));
+		content = content.substring(content.indexOf(",") + 1);
+		int startIndexOwnedBy = content.lastIndexOf(ownedBy);
+		int startIndexPagesPrinted = content.lastIndexOf(pagesPrinted);
+		int startIndexWasPrintedOn = content.lastIndexOf(wasPrintedOn);
+		temp.bannerID = Integer.parseInt(banner);
+		temp.regNo = content.substring((startIndexOwnedBy + ownedBy.length()));
+		temp.regNo = temp.regNo.substring(0, temp.regNo.indexOf("on") - 1);
+		temp.documentName = content.substring(0, startIndexOwnedBy - 1);
+		String pages = content.substring(startIndexPagesPrinted + pagesPrinted.length());
+		pages = pages.substring(0, pages.indexOf("."));
+		temp.pages = Integer.parseInt(pages);
+		temp.printerName = content.substring(startIndexWasPrintedOn + wasPrintedOn.length());
+		temp.printerName = temp.printerName.substring(0, temp.printerName.indexOf(" through port"));
+		date = date.replaceAll("-", "/");
+		temp.printTime = new Timestamp(new Date(date).getTime());
+		return temp;
+	}
+
+	private static String stripNonPrintable(String s) {
+		StringBuilder stripped = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) >= ' ')
+				stripped.append(s.charAt(i));
+		return stripped.toString();
+	}
+
+	/** Parses the message with Event307Parser and checks every value against the baseline */
+	private static PrintingDetails check(Event307Parser parser, String content, String date) {
+		PrintingDetails expected = baseline(content, date);
+		assertTrue(parser.scan(content) > 2);
+		PrintingDetails actual = parser.parse(date);
+		String message = "Message " + content;
+		assertEquals(message, expected.bannerID, actual.bannerID);
+		assertEquals(message, expected.regNo, actual.regNo);
+		assertEquals(message, expected.documentName, actual.documentName);
+		assertEquals(message, expected.pages, actual.pages);
+		assertEquals(message, expected.printerName, actual.printerName);
+		assertEquals(message, expected.printTime, actual.printTime);
+		return actual;
+	}
+
+	@Test
+	public void sample() {
+		PrintingDetails details = check(new Event307Parser(), SAMPLE, DATE);
+		assertEquals(" Microsoft Word - VIPUL_KUMAR_ECE", details.documentName);
+		assertEquals("108109109", details.regNo);
+		assertEquals("A4-4515x", details.printerName);
+		assertEquals(3, details.pages);
+		assertEquals(1790, details.bannerID);
+	}
+
+	@Test
+	public void phrasesInDocumentName() {
+		Event307Parser parser = new Event307Parser();
+		check(parser, SAMPLE.replace("VIPUL_KUMAR_ECE", "Notes owned by 108109001 on shared drive"), DATE);
+		check(parser, SAMPLE.replace("VIPUL_KUMAR_ECE", "Notes on printing, was printed on A3 through port x"), DATE);
+		check(parser, SAMPLE.replace("VIPUL_KUMAR_ECE", "Pages printed: 99. owned by"), DATE);
+		check(parser, SAMPLE.replace("VIPUL_KUMAR_ECE", "\"Final\", page 1, on print"), DATE);
+		check(parser, "\r\n" + SAMPLE.replace("VIPUL", "VIP\u0007UL") + "\u0000\t", "8/24/2012 \u000011:02:36 PM");
+	}
+
+	@Test
+	public void generatedExport() throws IOException {
+		File export = File.createTempFile("export", ".csv");
+		try {
+			new ExportGenerator(3000, 200, 8, 2, ExportGenerator.DEFAULT_SERVER).write(export);
+			Event307Parser parser = new Event307Parser();
+			int events = 0;
+			int ownedBy = 0;
+			int longNames = 0;
+			int nonPrintable = 0;
+			CsvEventReader csv = new CsvEventReader(export, CreatePrinterLogCSV.MESSAGE_COLUMN, CreatePrinterLogCSV.TIME_CREATED_COLUMN);
+			try {
+				while (csv.next()) {
+					String content = csv.get(0);
+					PrintingDetails details = check(parser, content, csv.get(1));
+					events++;
+					if (details.documentName.contains(" owned by "))
+						ownedBy++;
+					if (details.documentName.length() >= 100)
+						longNames++;
+					if (!stripNonPrintable(content).equals(content))
+						nonPrintable++;
+				}
+			} finally {
+				csv.close();
+			}
+			assertEquals(3000, events);
+			assertTrue(ownedBy > 0 && longNames > 0 && nonPrintable > 0);
+		} finally {
+			export.delete();
+		}
+	}
+}
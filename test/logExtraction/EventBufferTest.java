@@ -0,0 +1,106 @@
+/*
+ * Checks that EventBuffer keeps the values of the events it is given, and that timeOrder gives the
+ * rows in time order, events of the same time by server and banner ID, whether the events come in
+ * order, in reverse order as Get-WinEvent lists them, or shuffled.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Random;
+
+import org.junit.Test;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The EventBufferTest class */
+public class EventBufferTest {
+
+	static final long START = Timestamp.valueOf("2012-08-24 11:02:36").getTime();
+
+	static PrintingDetails event(long printTime, String server, int bannerID) {
+		PrintingDetails details = new PrintingDetails();
+		details.printTime = new Timestamp(printTime);
+		details.server = server;
+		details.bannerID = bannerID;
+		details.printerName = "A4-4515x";
+		details.regNo = "108109109";
+		details.documentName = "Microsoft Word - notes";
+		details.pages = 3;
+		return details;
+	}
+
+	/** Checks that the order holds every row once and that each row comes after the one before */
+	private static void assertTimeOrder(EventBuffer events, int[] order) {
+		assertEquals(events.size(), order.length);
+		boolean[] seen = new boolean[order.length];
+		for (int i = 0; i < order.length; i++) {
+			assertTrue(!seen[order[i]]);
+			seen[order[i]] = true;
+			if (i > 0)
+				assertTrue("Row "+i, events.compare(order[i - 1], order[i]) <= 0);
+		}
+	}
+
+	@Test
+	public void values() {
+		EventBuffer events = new EventBuffer(1);
+		PrintingDetails details = event(START, "PRINTSERVER", 1790);
+		details.documentName = "Rapport d'activit\u00e9 \u20ac";
+		for (int i = 0; i < 100; i++)
+			events.add(details, i);
+		assertEquals(100, events.size());
+		PrintingDetails copy = events.get(99);
+		assertEquals(details.printTime, copy.printTime);
+		assertEquals(details.documentName, copy.documentName);
+		assertEquals(details.regNo, events.regNo(42));
+		assertEquals(99f, events.charges(99), 0);
+		EventBuffer other = new EventBuffer(16);
+		other.add(events, 7, 2.5f);
+		assertEquals(details.documentName, other.documentName(0));
+		assertEquals(2.5f, other.charges(0), 0);
+	}
+
+	@Test
+	public void inOrderAndReversed() {
+		EventBuffer ascending = new EventBuffer(16);
+		EventBuffer descending = new EventBuffer(16);
+		for (int i = 0; i < 1000; i++) {
+			ascending.add(event(START + 1000L * i, "PRINTSERVER", i));
+			descending.add(event(START + 1000L * (999 - i), "PRINTSERVER", 999 - i));
+		}
+		int[] order = ascending.timeOrder();
+		for (int i = 0; i < order.length; i++)
+			assertEquals(i, order[i]);
+		order = descending.timeOrder();
+		for (int i = 0; i < order.length; i++)
+			assertEquals(999 - i, order[i]);
+		assertArrayEquals(new int[0], new EventBuffer(16).timeOrder());
+	}
+
+	@Test
+	public void shuffled() {
+		Random random = new Random(307);
+		EventBuffer events = new EventBuffer(16);
+		// Few distinct times, so that many events are ordered by server and banner ID
+		for (int i = 0; i < 5000; i++)
+			events.add(event(START + 1000L * random.nextInt(50), "SERVER" + random.nextInt(3), random.nextInt(100000)));
+		assertTimeOrder(events, events.timeOrder());
+	}
+
+	@Test
+	public void sameTime() {
+		EventBuffer events = new EventBuffer(16);
+		events.add(event(START + 1000, "B", 1));
+		events.add(event(START, "B", 2));
+		events.add(event(START, "A", 9));
+		events.add(event(START, null, 5));
+		events.add(event(START, "B", 1));
+		assertArrayEquals(new int[] { 3, 2, 4, 1, 0 }, events.timeOrder());
+		assertTrue(EventBuffer.compare(events, 2, events, 1) < 0);
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Checks that IngestDaemon finds the end of the last complete record in UTF-8 and UTF-16, with
+ * line feeds inside quoted messages, and that the offset of an export only moves past the start
+ * once its column headers were read, and never past a record that is still being written.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The IngestDaemonTest class */
+public class IngestDaemonTest {
+
+	static final String URL = "jdbc:h2:mem:daemon;MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1";
+
+	static final String RECORDS = "\"Document 1, notes\nowned by 108109109\",\"8/24/2012 11:02:36 AM\"\r\n"
+			+ "\"Document 2\",\"8/24/2012 11:03:00 AM\"\r\n\"Document 3, still being";
+
+	private File directory;
+	private File state;
+
+	@Before
+	public void createDirectories() throws IOException {
+		directory = Files.createTempDirectory("drop").toFile();
+		state = Files.createTempDirectory("daemon").toFile();
+	}
+
+	@After
+	public void deleteDirectories() {
+		delete(directory);
+		delete(state);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static int end(String records, Charset charset, int start) throws IOException {
+		byte[] bytes = records.getBytes(charset);
+		return IngestDaemon.recordsEnd(bytes, start, charset);
+	}
+
+	@Test
+	public void recordsEndUtf8() throws IOException {
+		int second = RECORDS.indexOf("\"Document 2");
+		int third = RECORDS.indexOf("\"Document 3");
+		assertEquals(third, end(RECORDS, StandardCharsets.UTF_8, 0));
+		assertEquals(third, end(RECORDS, StandardCharsets.UTF_8, second));
+		// The line feed in the quoted message does not end the record
+		assertEquals(0, end(RECORDS.substring(0, second - 2), StandardCharsets.UTF_8, 0));
+		assertEquals(0, end("", StandardCharsets.UTF_8, 0));
+		// Characters of several bytes count as their bytes
+		String accented = RECORDS.replace("notes", "not\u00e9s \u20ac");
+		assertEquals(accented.substring(0, accented.indexOf("\"Document 3")).getBytes(StandardCharsets.UTF_8).length,
+				end(accented, StandardCharsets.UTF_8, 0));
+	}
+
+	@Test
+	public void recordsEndUtf16() throws IOException {
+		int third = RECORDS.indexOf("\"Document 3");
+		assertEquals(2 * third, end(RECORDS, StandardCharsets.UTF_16LE, 0));
+		assertEquals(2 * third, end(RECORDS, StandardCharsets.UTF_16BE, 0));
+		// After the byte order mark, and with the last character cut in half
+		byte[] bytes = ("\ufeff" + RECORDS).getBytes(StandardCharsets.UTF_16LE);
+		bytes = Arrays.copyOf(bytes, bytes.length - 1);
+		assertEquals(2 + 2 * third, IngestDaemon.recordsEnd(bytes, 2, StandardCharsets.UTF_16LE));
+		// A line feed byte that is half of another character ends nothing
+		assertEquals(0, end("\"\u0a41\u410a\"", StandardCharsets.UTF_16LE, 0));
+		assertEquals(0, end("\"\u0a41\u410a\"", StandardCharsets.UTF_16BE, 0));
+	}
+
+	private static Connection connection() throws SQLException {
+		Connection connection = DriverManager.getConnection(URL);
+		connection.setAutoCommit(false);
+		return connection;
+	}
+
+	/** Reads the drop directory once, the daemon being stopped before it runs it only scans and commits */
+	private void scan() throws Exception {
+		IngestDaemon daemon = new IngestDaemon(directory, 60 * 1000L, 100000, new CreatePrinterLogCSV(connection()));
+		daemon.stop();
+		daemon.run();
+	}
+
+	private static void write(File file, byte[] bytes, int length) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes, 0, length);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long offset(String name) throws SQLException {
+		Connection connection = connection();
+		try {
+			return IngestOffsets.load(connection, LoadThroughput.SCHEMA).get(name);
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static int rows() throws SQLException {
+		Connection connection = connection();
+		try {
+			ResultSet result = connection.createStatement().executeQuery("SELECT COUNT(*) FROM "+LoadThroughput.SCHEMA+".TEMPAug2012");
+			result.next();
+			return result.getInt(1);
+		} finally {
+			connection.close();
+		}
+	}
+
+	/** Byte offsets just after each line of a UTF-16LE export that is not inside quotes */
+	private static int[] lineEnds(byte[] bytes) {
+		List<Integer> ends = new ArrayList<Integer>();
+		boolean quoted = false;
+		for (int i = 2; i + 1 < bytes.length; i += 2) {
+			int c = (bytes[i + 1] & 0xff) << 8 | (bytes[i] & 0xff);
+			if (c == '"')
+				quoted = !quoted;
+			else if (c == '\n' && !quoted)
+				ends.add(i + 2);
+		}
+		int[] result = new int[ends.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = ends.get(i);
+		return result;
+	}
+
+	@Test
+	public void headersAndOffsets() throws Exception {
+		Connection connection = connection();
+		LoadThroughput.createTables(connection);
+		connection.commit();
+		connection.close();
+		CreatePrinterLogCSV.useDatabase("h2", LoadThroughput.SCHEMA, state);
+
+		File generated = new File(state, "generated.csv");
+		new ExportGenerator(20, 5, 2, 1, ExportGenerator.DEFAULT_SERVER).write(generated);
+		byte[] export = Files.readAllBytes(generated.toPath());
+		int[] ends = lineEnds(export);
+		assertEquals(22, ends.length);
+		assertEquals(export.length, ends[21]);
+		File file = new File(directory, "export.csv");
+
+		// Only the #TYPE line, the offset stays at the start until the column headers are there
+		write(file, export, ends[0]);
+		scan();
+		assertEquals(0, offset("export.csv"));
+
+		// The column headers and 10 events, the headers must not be taken for an event
+		write(file, export, ends[11]);
+		scan();
+		assertEquals(ends[11], offset("export.csv"));
+		assertEquals(10, rows());
+
+		// Half of the next event, which is left until it is complete
+		write(file, export, ends[11] + (ends[12] - ends[11]) / 2);
+		scan();
+		assertEquals(ends[11], offset("export.csv"));
+		assertEquals(10, rows());
+
+		write(file, export, export.length);
+		scan();
+		assertEquals(export.length, offset("export.csv"));
+		assertEquals(20, rows());
+		assertTrue(!new File(state, "quarantine").exists() || new File(state, "quarantine").list().length == 0);
+
+		// Nothing new, nothing is loaded again
+		scan();
+		assertEquals(20, rows());
+	}
+}
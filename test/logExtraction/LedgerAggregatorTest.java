@@ -0,0 +1,126 @@
+/*
+ * Checks that LedgerAggregator sums the charges of each student and month and writes them to
+ * csgled the same way with MERGE and with an update followed by an insert, adding to the entries
+ * that exist and creating the others, and that charges taken back leave no entry behind.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The LedgerAggregatorTest class */
+public class LedgerAggregatorTest {
+
+	static final String URL = "jdbc:h2:mem:ledger;MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1";
+
+	/** Aug 2012 as mon, the month counted from 0 */
+	static final int AUGUST = 2012 * 100 + 7;
+	static final int SEPTEMBER = 2012 * 100 + 8;
+
+	private Connection connection;
+
+	@Before
+	public void createTables() throws SQLException {
+		connection = DriverManager.getConnection(URL);
+		connection.setAutoCommit(false);
+		LoadThroughput.createTables(connection);
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("INSERT INTO "+LoadThroughput.SCHEMA+".csgled (rollno, remarks, drcr, charges, mon, mo)"
+				+" VALUES ('108109001', 'Printout charges for Aug 2012', 'dr', 10, "+AUGUST+", 'Aug2012')");
+		statement.close();
+		connection.commit();
+	}
+
+	@After
+	public void close() throws SQLException {
+		connection.close();
+	}
+
+	/** Charges of csgled keyed on roll number and month, checking the other columns of each entry */
+	private Map<String, Double> ledger() throws SQLException {
+		Map<String, Double> charges = new HashMap<String, Double>();
+		Statement statement = connection.createStatement();
+		ResultSet result = statement.executeQuery("SELECT rollno, mo, charges, remarks, drcr, mon FROM "+LoadThroughput.SCHEMA+".csgled");
+		while (result.next()) {
+			String mo = result.getString(2);
+			assertNull("Two entries for "+result.getString(1)+" "+mo, charges.put(result.getString(1)+" "+mo, result.getDouble(3)));
+			assertEquals("Printout charges for "+mo.substring(0, 3)+" "+mo.substring(3), result.getString(4));
+			assertEquals("dr", result.getString(5));
+			assertEquals(mo.startsWith("Aug") ? AUGUST : SEPTEMBER, result.getInt(6));
+		}
+		statement.close();
+		return charges;
+	}
+
+	private static LedgerAggregator charges() {
+		LedgerAggregator ledger = new LedgerAggregator();
+		ledger.add("108109001", "Aug", "2012", AUGUST, 1.5);
+		ledger.add("108109001", "Aug", "2012", AUGUST, 2.25);
+		ledger.add("108109001", "Sep", "2012", SEPTEMBER, 4);
+		ledger.add("108109002", "Aug", "2012", AUGUST, 3);
+		// Taken back, as an event the database rejected
+		ledger.add("108109002", "Aug", "2012", AUGUST, 7);
+		ledger.remove("108109002", "Aug", "2012", 7);
+		// A student with all events taken back gets no entry
+		ledger.add("108109003", "Sep", "2012", SEPTEMBER, 5);
+		ledger.remove("108109003", "Sep", "2012", 5);
+		ledger.remove("108109004", "Sep", "2012", 5);
+		return ledger;
+	}
+
+	private void checkWrite(SqlDialect dialect) throws SQLException {
+		LedgerAggregator ledger = charges();
+		assertEquals(3, ledger.size());
+		ledger.write(connection, LoadThroughput.SCHEMA, dialect);
+		Map<String, Double> charges = ledger();
+		assertEquals(3, charges.size());
+		assertEquals(13.75, charges.get("108109001 Aug2012"), 0.001);
+		assertEquals(4, charges.get("108109001 Sep2012"), 0.001);
+		assertEquals(3, charges.get("108109002 Aug2012"), 0.001);
+
+		// A second run adds to the entries it made
+		ledger.clear();
+		ledger.add("108109002", "Aug", "2012", AUGUST, 1);
+		ledger.write(connection, LoadThroughput.SCHEMA, dialect);
+		assertEquals(4, ledger().get("108109002 Aug2012"), 0.001);
+
+		// Nothing to write, nothing changes
+		ledger.clear();
+		ledger.write(connection, LoadThroughput.SCHEMA, dialect);
+		assertEquals(3, ledger().size());
+	}
+
+	@Test
+	public void merge() throws SQLException {
+		checkWrite(SqlDialect.H2);
+	}
+
+	@Test
+	public void updateThenInsert() throws SQLException {
+		// MySQL has no MERGE, its update and insert statements run on H2 as well
+		checkWrite(SqlDialect.MYSQL);
+	}
+
+	@Test
+	public void rolledBack() throws SQLException {
+		LedgerAggregator ledger = charges();
+		ledger.write(connection, LoadThroughput.SCHEMA, SqlDialect.H2);
+		connection.rollback();
+		Map<String, Double> charges = ledger();
+		assertEquals(1, charges.size());
+		assertEquals(10, charges.get("108109001 Aug2012"), 0.001);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Checks that MultiServerIngest hands the events of several exports to the sink as one stream in
+ * time order, every event once, with the range of their times before them, and that the server of
+ * an event is its MachineName whatever name the export was given.
+ */
+
+package logExtraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** The MultiServerIngestTest class */
+public class MultiServerIngestTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("exports").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	/** Keeps what the sink was handed */
+	static class Recorder implements MultiServerIngest.EventSink {
+		Date startDate;
+		Date endDate;
+		EventBuffer lastEvents;
+		int lastRow = -1;
+		int outOfOrder = 0;
+		int beforeRange = 0;
+		final Map<String, Integer> servers = new HashMap<String, Integer>();
+		final Map<String, Integer> bannerIDs = new HashMap<String, Integer>();
+
+		public void range(Date startDate, Date endDate) {
+			this.startDate = startDate;
+			this.endDate = endDate;
+		}
+
+		public void write(EventBuffer events, int row) {
+			if (startDate == null)
+				beforeRange++;
+			else if (events.time(row) < startDate.getTime() || events.time(row) > endDate.getTime())
+				outOfOrder++;
+			if (lastEvents != null && EventBuffer.compare(lastEvents, lastRow, events, row) > 0)
+				outOfOrder++;
+			lastEvents = events;
+			lastRow = row;
+			count(servers, events.server(row));
+			count(bannerIDs, events.server(row) + "/" + events.bannerID(row));
+		}
+
+		public void failed(String content, String date, String server, String reason) {
+		}
+
+		private static void count(Map<String, Integer> counts, String key) {
+			Integer count = counts.get(key);
+			counts.put(key, count == null ? 1 : count + 1);
+		}
+	}
+
+	private File export(String name, int rows, int months, String server) throws IOException {
+		File file = new File(directory, name);
+		new ExportGenerator(rows, 50, 4, months, server).write(file);
+		return file;
+	}
+
+	@Test
+	public void mergedInTimeOrder() throws Exception {
+		List<MultiServerIngest.Export> exports = new ArrayList<MultiServerIngest.Export>();
+		exports.add(MultiServerIngest.Export.parse(export("a.csv", 3000, 3, "SRVA").getPath()));
+		exports.add(MultiServerIngest.Export.parse(export("b.csv", 2000, 2, "SRVB").getPath()));
+		exports.add(MultiServerIngest.Export.parse(export("c.csv", 1, 1, "SRVC").getPath()));
+		// Same banner IDs and times as SRVA, told apart by the server only
+		exports.add(MultiServerIngest.Export.parse(export("d.csv", 3000, 3, "SRVD").getPath()));
+		Recorder sink = new Recorder();
+		assertEquals(8001, new MultiServerIngest(2).run(exports, sink));
+		assertEquals(0, sink.beforeRange);
+		assertEquals(0, sink.outOfOrder);
+		assertEquals(3000, sink.servers.get("SRVA").intValue());
+		assertEquals(2000, sink.servers.get("SRVB").intValue());
+		assertEquals(1, sink.servers.get("SRVC").intValue());
+		assertEquals(3000, sink.servers.get("SRVD").intValue());
+		assertEquals(8001, sink.bannerIDs.size());
+		assertNotNull(sink.startDate);
+		assertTrue(sink.startDate.before(sink.endDate));
+	}
+
+	@Test
+	public void machineNameWins() throws Exception {
+		List<MultiServerIngest.Export> exports = new ArrayList<MultiServerIngest.Export>();
+		exports.add(MultiServerIngest.Export.parse("OTHER=" + export("a.csv", 100, 1, "SRVA").getPath()));
+		// Without MachineName the name given is used
+		exports.add(MultiServerIngest.Export.parse("SRVB=" + export("b.csv", 100, 1, "").getPath()));
+		exports.add(MultiServerIngest.Export.parse(export("SRVC.csv", 100, 1, "").getPath()));
+		Recorder sink = new Recorder();
+		new MultiServerIngest(3).run(exports, sink);
+		assertEquals(3, sink.servers.size());
+		assertEquals(100, sink.servers.get("SRVA").intValue());
+		assertEquals(100, sink.servers.get("SRVB").intValue());
+		assertEquals(100, sink.servers.get("SRVC").intValue());
+	}
+
+	@Test
+	public void noEvents() throws Exception {
+		List<MultiServerIngest.Export> exports = new ArrayList<MultiServerIngest.Export>();
+		exports.add(MultiServerIngest.Export.parse(export("a.csv", 0, 1, "SRVA").getPath()));
+		Recorder sink = new Recorder();
+		assertEquals(0, new MultiServerIngest(1).run(exports, sink));
+		assertEquals(null, sink.startDate);
+	}
+}
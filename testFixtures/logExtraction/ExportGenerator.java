@@ -0,0 +1,189 @@
+/*
+ * Writes made up exports in the layout of Get-WinEvent | ConvertTo-csv, for testing at the scale of
+ * a real print server without a real log.
+ * Usage: ExportGenerator <file> [rows] [users] [printers] [months] [server]
+ *
+ * The export is UTF-16 with a byte order mark, has the #TYPE line and the 17 columns of the real one,
+ * and lists the newest event first. The events are spread over the months from August 2012,
+ * with document numbers going up with time. Some users print far more than others.
+ * Among the events are the cases that the parser and the writer have to cope with: document names
+ * longer than the month tables hold, names containing " owned by " and quotes, and messages with
+ * non printable characters and line breaks. The same arguments always give the same export.
+ */
+
+package logExtraction;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+/** The ExportGenerator class */
+public class ExportGenerator {
+
+	static Logger slogger = Logger.getLogger(ExportGenerator.class);
+
+	static final int DEFAULT_ROWS = 100000;
+	static final int DEFAULT_USERS = 2000;
+	static final int DEFAULT_PRINTERS = 8;
+	static final int DEFAULT_MONTHS = 1;
+	static final String DEFAULT_SERVER = "PRINTSERVER";
+
+	/** First day of the events */
+	static final String START = "2012-08-01 00:00:00";
+
+	/** Events in a hundred that are long, have " owned by " or quotes in the name, or have non printable characters */
+	static final int LONG_NAMES = 1;
+	static final int OWNED_BY_NAMES = 1;
+	static final int QUOTED_NAMES = 1;
+	static final int NON_PRINTABLE = 2;
+
+	private static final String[] APPLICATIONS = { "Microsoft Word - ", "Microsoft PowerPoint - ", "Microsoft Excel - ",
+			"Adobe Acrobat - ", "", "http://", "Notepad - " };
+
+	private static final String[] WORDS = { "Assignment", "Lab", "Report", "Record", "Thesis", "Notes", "Slides",
+			"Final", "Draft", "Circuit", "Design", "Project", "ECE", "CSE", "EEE", "MECH", "Resume", "Question_Bank" };
+
+	private final int rows;
+	private final int users;
+	private final int printers;
+	private final int months;
+	private final String server;
+
+	/**
+	 * @param users number of roll numbers the events are printed by
+	 * @param printers number of printers, the first ones are those of LoadThroughput
+	 * @param months number of months the events are spread over
+	 */
+	public ExportGenerator(int rows, int users, int printers, int months, String server) {
+		this.rows = rows;
+		this.users = Math.max(1, users);
+		this.printers = Math.max(1, printers);
+		this.months = Math.max(1, months);
+		this.server = server;
+	}
+
+	/** Name of a printer, the printers of LoadThroughput first so that they have costs */
+	static String printerName(int printer) {
+		if (printer < LoadThroughput.PRINTERS.length)
+			return LoadThroughput.PRINTERS[printer];
+		return "Lab" + (printer / 10 + 1) + "-" + (4000 + printer);
+	}
+
+	/** Roll number of a user */
+	static String regNo(int user) {
+		return String.valueOf(108109000 + user);
+	}
+
+	/** Writes the export, returning the number of events written */
+	public long write(File file) throws IOException {
+		Random random = new Random(rows * 31L + users);
+		Calendar calendar = new GregorianCalendar();
+		calendar.setTime(Timestamp.valueOf(START));
+		long start = calendar.getTimeInMillis();
+		calendar.add(Calendar.MONTH, months);
+		long end = calendar.getTimeInMillis();
+		int bannerID = rows;
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-16LE"), 1 << 16);
+		try {
+			out.write('\uFEFF');
+			out.write("#TYPE System.Diagnostics.Eventing.Reader.EventLogRecord\r\n");
+			out.write("\"Message\",\"Id\",\"Version\",\"Qualifiers\",\"Level\",\"Task\",\"Opcode\",\"Keywords\",\"RecordId\","
+					+ "\"ProviderName\",\"ProviderId\",\"LogName\",\"ProcessId\",\"ThreadId\",\"MachineName\",\"UserId\",\"TimeCreated\"\r\n");
+			StringBuilder message = new StringBuilder(512);
+			for (int i = 0; i < rows; i++) {
+				// Each event falls in its own slot of the months, walking back from the end as the newest event comes first
+				long time = end - (long) ((i + random.nextDouble()) * (end - start) / rows);
+				calendar.setTimeInMillis(time - time % 1000);
+				message.setLength(0);
+				message(message, random, bannerID--);
+				out.write('"');
+				out.write(message.toString().replace("\"", "\"\""));
+				out.write("\",\"307\",\"0\",,\"4\",\"26\",\"11\",\"-9223372036854775744\",\"" + (rows - i) + "\","
+						+ "\"Microsoft-Windows-PrintService\",,\"Microsoft-Windows-PrintService/Operational\",\"1234\",\"5678\",\""
+						+ server + "\",\"S-1-5-21\",\"" + timeCreated(calendar) + "\"\r\n");
+			}
+		} finally {
+			out.close();
+		}
+		slogger.info("Wrote " + rows + " events of " + users + " users on " + printers + " printers to " + file);
+		return rows;
+	}
+
+	/** Time as TimeCreated is written, such as 8/24/2012 11:02:36 AM */
+	private static String timeCreated(Calendar calendar) {
+		int hour = calendar.get(Calendar.HOUR);
+		return (calendar.get(Calendar.MONTH) + 1) + "/" + calendar.get(Calendar.DAY_OF_MONTH) + "/" + calendar.get(Calendar.YEAR)
+				+ " " + (hour == 0 ? 12 : hour) + ":" + twoDigits(calendar.get(Calendar.MINUTE)) + ":" + twoDigits(calendar.get(Calendar.SECOND))
+				+ (calendar.get(Calendar.AM_PM) == Calendar.AM ? " AM" : " PM");
+	}
+
+	private static String twoDigits(int value) {
+		return value < 10 ? "0" + value : String.valueOf(value);
+	}
+
+	/** Appends the message of an event 307 */
+	private void message(StringBuilder message, Random random, int bannerID) {
+		int nonPrintable = random.nextInt(100) < NON_PRINTABLE ? random.nextInt(3) : -1;
+		if (nonPrintable == 0)
+			message.append("\r\n");
+		message.append("Document ").append(bannerID).append(", ");
+		documentName(message, random);
+		// Some users print far more than others
+		int user = random.nextInt(1 + random.nextInt(users));
+		message.append(" owned by ").append(regNo(user)).append(" on \\\\10.1.34.").append(user % 255);
+		message.append(" was printed on ").append(printerName(random.nextInt(printers)));
+		message.append(" through port 10.0.0.43_2.  Size in bytes: ").append(random.nextInt(2000000));
+		int pages = random.nextInt(10) == 0 ? 1 + random.nextInt(100) : 1 + random.nextInt(10);
+		message.append(". Pages printed: ").append(pages).append(". No user action is required.");
+		if (nonPrintable == 1)
+			message.append('\u0000');
+		else if (nonPrintable == 2)
+			message.insert(message.indexOf(",") + 2, '\u0007').append('\t');
+	}
+
+	private void documentName(StringBuilder message, Random random) {
+		int kind = random.nextInt(100);
+		message.append(APPLICATIONS[random.nextInt(APPLICATIONS.length)]);
+		if (kind < LONG_NAMES) {
+			// Longer than the 100 characters of the filename column
+			int length = 100 + random.nextInt(300);
+			while (length > 0) {
+				String word = WORDS[random.nextInt(WORDS.length)];
+				message.append(word).append('_');
+				length -= word.length() + 1;
+			}
+			message.append(".pdf");
+		} else if (kind < LONG_NAMES + OWNED_BY_NAMES) {
+			message.append("Notes owned by ").append(regNo(random.nextInt(users))).append(" on shared drive");
+		} else if (kind < LONG_NAMES + OWNED_BY_NAMES + QUOTED_NAMES) {
+			message.append("\"").append(WORDS[random.nextInt(WORDS.length)]).append("\", page 1, on print");
+		} else {
+			message.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000));
+			if (random.nextBoolean())
+				message.append(".docx");
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: ExportGenerator <file> [rows] [users] [printers] [months] [server]");
+			System.exit(1);
+		}
+		int rows = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROWS;
+		int users = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_USERS;
+		int printers = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_PRINTERS;
+		int months = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MONTHS;
+		String server = args.length > 5 ? args[5] : DEFAULT_SERVER;
+		new ExportGenerator(rows, users, printers, months, server).write(new File(args[0]));
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Loads exports made by ExportGenerator through parseCSVFile into an embedded H2 database, the same
+ * path as a real run including the dedup index, the quarantine and the commit, and reports for each
+ * size the rows per second, the peak heap and the time spent in garbage collection.
+ * Usage: LoadTest [rows separated by comma] [users] [printers] [months] [jdbc url]
+ *
+ * The exports, the database, the dedup index and the quarantine are kept in printing-loadtest in the
+ * temporary directory. An export is only generated once for the same arguments. The database is a file
+ * so that 10 million rows fit, and its tables are dropped before each size. Writers, parser threads and
+ * the batch size are read from printerLog.properties as for a real run, so they can be compared.
+ * The peak heap includes the database, which runs in the same process.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+/** The LoadTest class */
+public class LoadTest {
+
+	static Logger slogger = Logger.getLogger(LoadTest.class);
+
+	static final String DEFAULT_ROWS = "10000,100000,1000000,10000000";
+
+	/** Result of loading one export */
+	static class Result {
+		long rows;
+		long nanos;
+		long quarantined;
+		long peakHeap;
+		long gcMillis;
+		long gcCount;
+		boolean committed;
+
+		double rowsPerSecond() {
+			return rows / (nanos / 1e9);
+		}
+	}
+
+	private final File directory;
+	private final ConnectionPool pool;
+	private final int printers;
+
+	/** @param printers number of printers of the exports, which are all given a cost */
+	public LoadTest(File directory, String url, int printers) {
+		this.directory = directory;
+		this.pool = new ConnectionPool(url, null, null, 16);
+		this.printers = printers;
+	}
+
+	/** Creates the tables, with a cost for every printer of the exports */
+	private void createTables() throws SQLException {
+		Connection connection = pool.borrow();
+		try {
+			LoadThroughput.createTables(connection);
+			PreparedStatement insert = connection.prepareStatement("INSERT INTO "+LoadThroughput.SCHEMA+".costs VALUES (?, 0.5, 1, 0.25)");
+			for (int i = LoadThroughput.PRINTERS.length; i < printers; i++) {
+				insert.setString(1, ExportGenerator.printerName(i));
+				insert.executeUpdate();
+			}
+			insert.close();
+			connection.commit();
+		} finally {
+			pool.release(connection);
+		}
+	}
+
+	/** Loads the export as a run would, with the dedup index and quarantine of its own */
+	Result load(File export, String name) throws SQLException {
+		createTables();
+		CreatePrinterLogCSV.useDatabase("h2", LoadThroughput.SCHEMA, new File(directory, name));
+		IngestMetrics metrics = IngestMetrics.get();
+		long rowsBefore = metrics.rowsRead.get();
+		long failuresBefore = metrics.parseFailures.get();
+		long gcMillisBefore = 0;
+		long gcCountBefore = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcMillisBefore += gc.getCollectionTime();
+			gcCountBefore += gc.getCollectionCount();
+		}
+		System.gc();
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans())
+			memoryPool.resetPeakUsage();
+
+		Result result = new Result();
+		long start = System.nanoTime();
+		CreatePrinterLogCSV run = new CreatePrinterLogCSV(pool);
+		run.parseCSVFile(export);
+		result.committed = run.cleanUp();
+		result.nanos = System.nanoTime() - start;
+
+		for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans())
+			if (memoryPool.getType() == MemoryType.HEAP && memoryPool.getPeakUsage() != null)
+				result.peakHeap += memoryPool.getPeakUsage().getUsed();
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			result.gcMillis += gc.getCollectionTime();
+			result.gcCount += gc.getCollectionCount();
+		}
+		result.gcMillis -= gcMillisBefore;
+		result.gcCount -= gcCountBefore;
+		result.rows = metrics.rowsRead.get() - rowsBefore;
+		result.quarantined = metrics.parseFailures.get() - failuresBefore;
+		return result;
+	}
+
+	public void close() {
+		pool.close();
+	}
+
+	public static void main(String[] args) throws IOException, SQLException {
+		String[] sizes = (args.length > 0 ? args[0] : DEFAULT_ROWS).split(",");
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : ExportGenerator.DEFAULT_USERS;
+		int printers = args.length > 2 ? Integer.parseInt(args[2]) : ExportGenerator.DEFAULT_PRINTERS;
+		int months = args.length > 3 ? Integer.parseInt(args[3]) : ExportGenerator.DEFAULT_MONTHS;
+		File directory = new File(System.getProperty("java.io.tmpdir"), "printing-loadtest");
+		String url = args.length > 4 ? args[4] : "jdbc:h2:"+new File(directory, "printing").getAbsolutePath()
+				+";MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE";
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory "+directory);
+
+		slogger.info("Load test of "+users+" users on "+printers+" printers over "+months+" months, heap of "
+				+Runtime.getRuntime().maxMemory() / (1024 * 1024)+" MB, database "+url);
+		LoadTest test = new LoadTest(directory, url, printers);
+		StringBuilder summary = new StringBuilder();
+		try {
+			for (String size : sizes) {
+				int rows = Integer.parseInt(size.trim());
+				String name = "export-"+rows+"-"+users+"-"+printers+"-"+months;
+				File export = new File(directory, name+".csv");
+				if (!export.isFile())
+					new ExportGenerator(rows, users, printers, months, ExportGenerator.DEFAULT_SERVER).write(export);
+				Result result = test.load(export, name);
+				String line = String.format("%9d rows: %9.0f rows/sec, peak heap %6d MB, GC %6d ms in %5d collections, %d quarantined%s",
+						result.rows, result.rowsPerSecond(), result.peakHeap / (1024 * 1024), result.gcMillis, result.gcCount,
+						result.quarantined, result.committed ? "" : ", NOT COMMITTED");
+				slogger.info(line);
+				summary.append("\n").append(line);
+			}
+		} finally {
+			test.close();
+		}
+		slogger.info("Load test results:"+summary);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Measures the rows per second achieved by PrintingDetailsWriter against an embedded H2 database.
+ * Usage: LoadThroughput [rows] [batch sizes separated by comma] [jdbc url]
+ * A batch size of 1 sends every month table insert in its own round trip as was done earlier,
+ * a batch size of 0 loads the month tables with CSVREAD through BulkMonthLoader.
+ */
+
+package logExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import logExtraction.CreatePrinterLogCSV.PrintingDetails;
+
+/** The LoadThroughput class */
+public class LoadThroughput {
+
+	static Logger slogger = Logger.getLogger(LoadThroughput.class);
+
+	static final String DEFAULT_URL = "jdbc:h2:mem:printing;MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;DB_CLOSE_DELAY=-1";
+
+	static final String SCHEMA = "printing";
+
+	/** Printers that are given a cost in the costs table */
+	static final String[] PRINTERS = { "A4-4515x", "A4-4250n", "A3-5200", "Lab-Color" };
+
+	/** Creates the tables used by the writer, dropping anything left over from a previous run */
+	static void createTables(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("DROP SCHEMA IF EXISTS "+SCHEMA+" CASCADE");
+		statement.executeUpdate("CREATE SCHEMA "+SCHEMA);
+		statement.executeUpdate("CREATE TABLE "+SCHEMA+".csgled ( rollno nvarchar(11), remarks nvarchar(40), drcr nvarchar(2),"
+				+" charges float(8), mon float(8), mo nvarchar(7))");
+		statement.executeUpdate("CREATE TABLE "+SCHEMA+".costs ( printername nvarchar(25), costperpage float(8),"
+				+" costFirstpage float(8), additionalCost float(8))");
+		for (int i = 0; i < PRINTERS.length; i++)
+			statement.executeUpdate("INSERT INTO "+SCHEMA+".costs VALUES ('"+PRINTERS[i]+"', "+(0.5 + i)+", 1, 0.25)");
+		statement.close();
+		connection.commit();
+	}
+
+	/** Produces the same sequence of events for every run so that the runs are comparable */
+	static PrintingDetails[] generate(int rows, int students) {
+		Random random = new Random(42);
+		PrintingDetails[] events = new PrintingDetails[rows];
+		long start = Timestamp.valueOf("2012-08-01 08:00:00").getTime();
+		for (int i = 0; i < rows; i++) {
+			PrintingDetails details = new PrintingDetails();
+			details.bannerID = i;
+			details.regNo = String.valueOf(108109000 + random.nextInt(students));
+			details.documentName = "Microsoft Word - Document "+random.nextInt(100000);
+			details.printerName = PRINTERS[random.nextInt(PRINTERS.length)];
+			details.pages = 1 + random.nextInt(20);
+			details.printTime = new Timestamp(start + i * 30000L);
+			events[i] = details;
+		}
+		return events;
+	}
+
+	/** Loads the events and commits, returning rows per second */
+	static double run(Connection connection, PrintingDetails[] events, int batchSize) throws SQLException, IOException {
+		createTables(connection);
+		long begin = System.nanoTime();
+		PrintingDetailsWriter writer = new PrintingDetailsWriter(connection, SCHEMA, SqlDialect.H2, batchSize,
+				new PrinterCostCache(connection, SCHEMA, PrinterCostCache.DEFAULT_REFRESH_MILLIS), bulkLoader(batchSize));
+		for (PrintingDetails details : events)
+			writer.write(details);
+		writer.flush();
+		connection.commit();
+		writer.close();
+		long elapsed = System.nanoTime() - begin;
+		return events.length / (elapsed / 1e9);
+	}
+
+	/** Bulk loader staging in the temporary directory for a batch size of 0, otherwise null */
+	static BulkMonthLoader bulkLoader(int batchSize) throws IOException {
+		if (batchSize != 0)
+			return null;
+		return new BulkMonthLoader(new File(System.getProperty("java.io.tmpdir")), null, SqlDialect.H2);
+	}
+
+	public static void main(String[] args) throws SQLException, IOException {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		String[] batchSizes = (args.length > 1 ? args[1] : "1,100,500,1000,0").split(",");
+		String url = args.length > 2 ? args[2] : DEFAULT_URL;
+
+		PrintingDetails[] events = generate(rows, 2000);
+		Connection connection = DriverManager.getConnection(url);
+		connection.setAutoCommit(false);
+		try {
+			// First run only warms up the JIT and the database
+			run(connection, events, batchSizes[0].trim().isEmpty() ? 1 : Integer.parseInt(batchSizes[0].trim()));
+			for (String size : batchSizes) {
+				int batchSize = Integer.parseInt(size.trim());
+				double rate = run(connection, events, batchSize);
+				slogger.info(String.format("batch size %5d: %10.0f rows/sec", batchSize, rate));
+			}
+		} finally {
+			connection.close();
+		}
+	}
+}